@@ -0,0 +1,251 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+public class BinnedFeatures {
+	public static final int maxBins = 256;
+	final int numFeatures;
+	final byte[][] bins;
+	final float[][] cuts;
+	final boolean[] classif;
+	byte[] weight;
+	private final int calibrationRows;
+	private float[][] pending;
+	private long[] sampleKey;
+	private int[] sampleSlot;
+	private int numSampled;
+	private int totRows;
+
+	public BinnedFeatures(int numFeatures, int maxRows, int calibrationRows) {
+		this.numFeatures = numFeatures;
+		this.calibrationRows = Math.min(maxRows, calibrationRows);
+		bins = new byte[numFeatures][maxRows];
+		cuts = new float[numFeatures][];
+		classif = new boolean[maxRows];
+		pending = new float[numFeatures][this.calibrationRows];
+	}
+
+	public static BinnedFeatures build(float[][] features, boolean[] classif, int totRows) {
+		long t = System.currentTimeMillis();
+		BinnedFeatures ret = new BinnedFeatures(features.length, totRows, 0);
+		ret.pending = null;
+		Random rnd = new Random(19720909);
+		int n = Math.min(totRows, 1 << 20);
+		float[] sample = new float[n];
+		for (int f = 0; f < ret.numFeatures; f++) {
+			float[] v = features[f];
+			for (int i = 0; i < n; i++) {
+				sample[i] = v[n == totRows ? i : rnd.nextInt(totRows)];
+			}
+			ret.cuts[f] = findCuts(sample, n);
+			byte[] b = ret.bins[f];
+			float[] c = ret.cuts[f];
+			for (int i = 0; i < totRows; i++) {
+				b[i] = (byte) bin(c, v[i]);
+			}
+		}
+		System.arraycopy(classif, 0, ret.classif, 0, totRows);
+		ret.totRows = totRows;
+		System.err.println("\t\tBinned " + ret.numFeatures + " features x " + totRows + " rows\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		return ret;
+	}
+
+	public synchronized void save(File file) throws Exception {
+		if (pending != null) calibrate();
+		long t = System.currentTimeMillis();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		out.writeInt(numFeatures);
+		out.writeInt(totRows);
+		for (int f = 0; f < numFeatures; f++) {
+			out.writeShort(cuts[f].length);
+			for (float c : cuts[f]) {
+				out.writeFloat(c);
+			}
+			out.write(bins[f], 0, totRows);
+		}
+		SampleStore.writeBooleans(out, classif, totRows);
+		out.writeBoolean(weight != null);
+		if (weight != null) out.write(weight, 0, totRows);
+		out.close();
+		System.err.println("\t\tSaved " + numFeatures + " binned features x " + totRows + " rows\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+	}
+
+	public static BinnedFeatures load(File file) throws Exception {
+		long t = System.currentTimeMillis();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+		int numFeatures = in.readInt();
+		int totRows = in.readInt();
+		BinnedFeatures ret = new BinnedFeatures(numFeatures, totRows, 0);
+		ret.pending = null;
+		for (int f = 0; f < numFeatures; f++) {
+			float[] c = ret.cuts[f] = new float[in.readShort()];
+			for (int i = 0; i < c.length; i++) {
+				c[i] = in.readFloat();
+			}
+			in.readFully(ret.bins[f], 0, totRows);
+		}
+		SampleStore.readBooleans(in, ret.classif, totRows);
+		if (in.readBoolean()) {
+			ret.weight = new byte[totRows];
+			in.readFully(ret.weight);
+		}
+		in.close();
+		ret.totRows = totRows;
+		System.err.println("\t\tLoaded " + numFeatures + " binned features x " + totRows + " rows\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		return ret;
+	}
+
+	public synchronized int compress(int maxWeight) {
+		if (pending != null) calibrate();
+		if (weight != null) return totRows;
+		long t = System.currentTimeMillis();
+		int[] target = new int[totRows];
+		byte[] w = new byte[totRows];
+		int numUnique = RowCompressor.group(RowCompressor.hash(bins, classif, totRows), totRows, maxWeight, target, w);
+		for (byte[] b : bins) {
+			RowCompressor.compact(b, target, totRows);
+		}
+		RowCompressor.compact(classif, target, totRows);
+		System.err.println("\t\tCompressed " + totRows + " binned rows into " + numUnique + "\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		weight = Arrays.copyOf(w, numUnique);
+		totRows = numUnique;
+		return totRows;
+	}
+
+	public synchronized void sample(float[] v) {
+		if (pending == null || totRows > 0 || calibrationRows == 0) return;
+		if (sampleKey == null) {
+			sampleKey = new long[calibrationRows];
+			sampleSlot = new int[calibrationRows];
+		}
+		long key = key(v);
+		int pos;
+		if (numSampled < calibrationRows) {
+			pos = numSampled;
+			sampleSlot[pos] = numSampled++;
+			while (pos > 0 && sampleKey[(pos - 1) >> 1] < key) {
+				int parent = (pos - 1) >> 1;
+				swap(pos, parent);
+				pos = parent;
+			}
+		} else {
+			if (key >= sampleKey[0]) return;
+			pos = 0;
+			while (true) {
+				int child = 2 * pos + 1;
+				if (child >= numSampled) break;
+				if (child + 1 < numSampled && sampleKey[child + 1] > sampleKey[child]) child++;
+				if (sampleKey[child] <= key) break;
+				swap(pos, child);
+				pos = child;
+			}
+		}
+		sampleKey[pos] = key;
+		int slot = sampleSlot[pos];
+		for (int f = 0; f < numFeatures; f++) {
+			pending[f][slot] = v[f];
+		}
+	}
+
+	private void swap(int a, int b) {
+		long k = sampleKey[a];
+		sampleKey[a] = sampleKey[b];
+		sampleKey[b] = k;
+		int s = sampleSlot[a];
+		sampleSlot[a] = sampleSlot[b];
+		sampleSlot[b] = s;
+	}
+
+	private static long key(float[] v) {
+		long h = 1125899906842597L;
+		for (float x : v) {
+			h = h * 31 + Float.floatToIntBits(x);
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public synchronized void add(float[] v, boolean c) {
+		if (numSampled > 0) calibrate();
+		int row = totRows++;
+		classif[row] = c;
+		if (pending != null) {
+			for (int f = 0; f < numFeatures; f++) {
+				pending[f][row] = v[f];
+			}
+			if (totRows == calibrationRows) calibrate();
+		} else {
+			for (int f = 0; f < numFeatures; f++) {
+				bins[f][row] = (byte) bin(cuts[f], v[f]);
+			}
+		}
+	}
+
+	public synchronized void finish() {
+		if (pending != null) calibrate();
+	}
+
+	private void calibrate() {
+		int n = numSampled > 0 ? numSampled : totRows;
+		for (int f = 0; f < numFeatures; f++) {
+			float[] v = pending[f];
+			cuts[f] = findCuts(v.clone(), n);
+			byte[] b = bins[f];
+			for (int i = 0; i < totRows; i++) {
+				b[i] = (byte) bin(cuts[f], v[i]);
+			}
+		}
+		System.err.println("\t\tCalibrated " + numFeatures + " features on " + n + " rows");
+		pending = null;
+		sampleKey = null;
+		sampleSlot = null;
+		numSampled = 0;
+	}
+
+	private static float[] findCuts(float[] v, int n) {
+		Arrays.sort(v, 0, n);
+		while (n > 0 && Float.isNaN(v[n - 1])) {
+			n--;
+		}
+		float[] ret = new float[maxBins - 2];
+		int cnt = 0;
+		for (int k = 1; k < maxBins - 1 && n > 0; k++) {
+			float c = v[(int) ((long) n * k / (maxBins - 1))];
+			if (c > v[0] && (cnt == 0 || c > ret[cnt - 1])) ret[cnt++] = c;
+		}
+		return Arrays.copyOf(ret, cnt);
+	}
+
+	static int bin(float[] c, float val) {
+		if (Float.isNaN(val)) return c.length + 1;
+		int lo = 0;
+		int hi = c.length;
+		while (lo < hi) {
+			int m = (lo + hi) >>> 1;
+			if (c[m] <= val) lo = m + 1;
+			else hi = m;
+		}
+		return lo;
+	}
+
+	public int numBins(int feature) {
+		return cuts[feature].length + 2;
+	}
+
+	public float splitVal(int feature, int bin) {
+		return cuts[feature][bin - 1];
+	}
+
+	public int size() {
+		return totRows;
+	}
+}
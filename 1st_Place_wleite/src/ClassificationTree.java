@@ -1,282 +1,794 @@
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.RecursiveAction;
 
 public class ClassificationTree {
-	private static double[] log = new double[1 << 26];
+	static final int histCacheMinRows = 1 << 20;
+	private static final int maxRowWeight = 127;
+	private final Random rnd;
+	private final TreeOptions options;
+	private float[][] features;
+	private BinnedFeatures data;
+	private int minRowsPerNode;
+	private int[] selRows, scratchRows;
+	private byte[] rowStat, scratchStat;
+	private int rootTot, rootClassif;
+	private int[] candFeature, candBin;
+	private float[][] candSplitVals;
+	private float[] candVal;
+	private double[] candGain;
+	private int[][] hist;
+	private int nodeCnt;
+	private int[] nodeClassif, nodeTot, nodeStart, nodeEnd, nodeLeft;
+	private double[] nodeImpurity;
+	private short[] nodeSplitFeature, nodeSplitBin;
+	private float[] nodeSplitVal;
+	private int[][][] nodeHist;
+	private int[] featureSplits;
+	private int[] active, used;
+	private int featuresSteps;
+	private int sampleNode;
+	private int[] sampleRows;
+	private byte[] sampleStat;
+	private double[] featureGain;
+
+	ClassificationTree(float[][] features, boolean[] classif, int totRows, int idx, int minRowsPerNode, int maxNodes) {
+		this(features, classif, totRows, idx, minRowsPerNode, maxNodes, new TreeOptions());
+	}
+
+	ClassificationTree(float[][] features, boolean[] classif, int totRows, int idx, int minRowsPerNode, int maxNodes, TreeOptions options) {
+		long t = System.currentTimeMillis();
+		initNodes(maxNodes + 3);
 
-	static {
-		for (int tot = 1; tot < log.length; tot++) {
-			log[tot] = Math.log(tot);
+		rnd = new Random(197209091220L + idx);
+		this.options = options;
+		this.features = features;
+		this.minRowsPerNode = minRowsPerNode;
+		int numFeatures = features.length;
+		active = options.activeFeatures(numFeatures);
+		featuresSteps = active.length * 4 / 5;
+		candFeature = new int[featuresSteps];
+		candSplitVals = new float[featuresSteps][10];
+		candVal = new float[featuresSteps];
+		candGain = new double[featuresSteps];
+		if (options.importance != null) {
+			featureSplits = new int[numFeatures];
+			featureGain = new double[numFeatures];
 		}
+		bootstrap(classif, totRows);
+		addNode(rootClassif, rootTot, 0, selRows.length - 1);
+		grow(idx, maxNodes, t);
+		if (options.outOfBag != null) outOfBag(totRows);
+		if (options.importance != null) options.importance.add(featureSplits, featureGain);
+		release();
+		System.err.println("\t\t" + idx + "\t" + nodeCnt + " nodes\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+
 	}
 
-	private ClassificationNode root;
-	private final Random rnd;
+	ClassificationTree(BinnedFeatures data, int idx, int minRowsPerNode, int maxNodes) {
+		this(data, idx, minRowsPerNode, maxNodes, new TreeOptions());
+	}
 
-	ClassificationTree(float[][] features, boolean[] classif, int totRows, int idx, int minRowsPerNode, int maxNodes) {
+	ClassificationTree(BinnedFeatures data, int idx, int minRowsPerNode, int maxNodes, TreeOptions options) {
 		long t = System.currentTimeMillis();
-		ClassificationNode[] nodes = new ClassificationNode[maxNodes + 2];
+		initNodes(maxNodes + 3);
 
 		rnd = new Random(197209091220L + idx);
-		int numFeatures = features.length;
-		int featuresSteps = numFeatures * 4 / 5;
-		int[] weight = new int[totRows];
-		for (int i = 0; i < totRows; i++) {
-			weight[rnd.nextInt(totRows)]++;
+		this.options = options;
+		this.data = data;
+		this.minRowsPerNode = minRowsPerNode;
+		int numFeatures = data.numFeatures;
+		active = options.activeFeatures(numFeatures);
+		featuresSteps = active.length * 4 / 5;
+		candFeature = new int[featuresSteps];
+		candBin = new int[featuresSteps];
+		candGain = new double[featuresSteps];
+		hist = new int[numFeatures][];
+		nodeHist = new int[maxNodes + 2][][];
+		if (options.importance != null) {
+			featureSplits = new int[numFeatures];
+			featureGain = new double[numFeatures];
 		}
-		int numSel = 0;
-		for (int i = 0; i < totRows; i++) {
-			if (weight[i] > 0) numSel++;
+		bootstrap(data.classif, data.size());
+		addNode(rootClassif, rootTot, 0, selRows.length - 1);
+		if (selRows.length >= histCacheMinRows) nodeHist[0] = histograms(0);
+		used = new int[numFeatures];
+		grow(idx, maxNodes, t);
+		if (options.outOfBag != null) outOfBag(data.size());
+		if (options.importance != null) options.importance.add(featureSplits, featureGain);
+		release();
+		System.err.println("\t\t" + idx + "\t" + nodeCnt + " nodes\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+	}
+
+	static long workingSet(int totRows, int numFeatures, int maxNodes, boolean binned, TreeOptions options) {
+		long ret = totRows * 11L;
+		if (options.outOfBag != null) ret += totRows * 4L + totRows / 8;
+		if (options.splitSampleRows > 0) ret += options.splitSampleRows * 5L;
+		ret += maxNodes * (options.bestFirst ? 64L : 48L);
+		if (binned) ret += numFeatures * (long) (BinnedFeatures.maxBins << 3) * (1 + 2L * totRows / histCacheMinRows);
+		return ret;
+	}
+
+	private void grow(int idx, int maxNodes, long t) {
+		int msg = 2;
+		if (!options.bestFirst) {
+			for (int node = 0; node < nodeCnt && nodeCnt < maxNodes; node++) {
+				int[][] h = nodeHist == null ? null : nodeHist[node];
+				if (h != null) nodeHist[node] = null;
+				if (node == msg) {
+					System.err.println("\t\t\t" + idx + "\t" + nodeCnt + " nodes\t" + nodeTot[node] + " rows\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+					msg *= 2;
+				}
+				double gain = findSplit(node, h);
+				if (gain > 0) splitBest(node, h, gain);
+			}
+			return;
 		}
-		int[] selRows = new int[numSel];
-		numSel = 0;
-		int classifCount = 0;
-		for (int i = 0; i < totRows; i++) {
-			if (weight[i] > 0) {
-				selRows[numSel++] = i;
-				if (classif[i]) classifCount += weight[i];
+		final double[] priority = new double[nodeLeft.length];
+		PriorityQueue<Integer> queue = new PriorityQueue<Integer>(1024, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int cmp = Double.compare(priority[b], priority[a]);
+				return cmp != 0 ? cmp : a.compareTo(b);
 			}
+		});
+		double[] gain = new double[nodeLeft.length];
+		gain[0] = findSplit(0, nodeHist == null ? null : nodeHist[0]);
+		if (gain[0] > 0) {
+			priority[0] = gain[0] * nodeTot[0];
+			queue.add(0);
 		}
-		root = new ClassificationNode(classifCount, totRows, impurity(classifCount, totRows), 1, 0, numSel - 1);
-		int nodeCnt = 0;
-		nodes[nodeCnt++] = root;
-		int msg = 2;
-		float[] splitVals = new float[10];
-		for (int i = 0; i < nodeCnt && nodeCnt < maxNodes; i++) {
-			ClassificationNode node = nodes[i];
-			if (i == msg) {
-				System.err.println("\t\t\t" + idx + "\t" + nodeCnt + " nodes\t" + node.numRows + " rows\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		while (!queue.isEmpty() && nodeCnt < maxNodes) {
+			int node = queue.poll();
+			int[][] h = nodeHist == null ? null : nodeHist[node];
+			if (h != null) nodeHist[node] = null;
+			splitBest(node, h, gain[node]);
+			for (int child = nodeLeft[node]; child <= nodeLeft[node] + 1; child++) {
+				gain[child] = findSplit(child, nodeHist == null ? null : nodeHist[child]);
+				if (gain[child] > 0) {
+					priority[child] = gain[child] * nodeTot[child];
+					queue.add(child);
+				}
+			}
+			if (nodeCnt >= msg) {
+				System.err.println("\t\t\t" + idx + "\t" + nodeCnt + " nodes\t" + nodeTot[node] + " rows\t" + (System.currentTimeMillis() - t) / 1000 + "s");
 				msg *= 2;
 			}
-			if (node.isPure() || node.numRows < minRowsPerNode * 2) continue;
-
-			double maxSplitGain = 0;
-			float bestSplitVal = 0;
-			int bestSplitFeature = -1;
+		}
+		for (int node = 0; node < nodeCnt; node++) {
+			if (nodeLeft[node] < 0) nodeSplitFeature[node] = -1;
+		}
+	}
 
+	private double findSplit(int node, int[][] h) {
+		if (isPure(node) || nodeTot[node] < minRowsPerNode * 2) return 0;
+		double maxSplitGain = 0;
+		if (data == null) {
 			for (int j = 0; j < featuresSteps; j++) {
-				int splitFeature = rnd.nextInt(numFeatures);
+				int splitFeature = active[rnd.nextInt(active.length)];
 				float[] featuresSplitFeature = features[splitFeature];
+				float[] splitVals = candSplitVals[j];
 				for (int k = 0; k < 10; k++) {
-					splitVals[k] = featuresSplitFeature[randomNodeRow(selRows, node, rnd)];
+					splitVals[k] = featuresSplitFeature[randomNodeRow(node)];
 				}
 				Arrays.sort(splitVals);
-				float splitVal1 = splitVals[0];
-				float splitVal2 = splitVals[1];
-				float splitVal3 = splitVals[2];
-				float splitVal4 = splitVals[3];
-				float splitVal5 = splitVals[4];
-				float splitVal6 = splitVals[5];
-				float splitVal7 = splitVals[6];
-				float splitVal8 = splitVals[7];
-				float splitVal9 = splitVals[8];
-				float splitVal10 = splitVals[9];
-				int leftTot1 = 0;
-				int leftClassif1 = 0;
-				int leftTot2 = 0;
-				int leftClassif2 = 0;
-				int leftTot3 = 0;
-				int leftClassif3 = 0;
-				int leftTot4 = 0;
-				int leftClassif4 = 0;
-				int leftTot5 = 0;
-				int leftClassif5 = 0;
-				int leftTot6 = 0;
-				int leftClassif6 = 0;
-				int leftTot7 = 0;
-				int leftClassif7 = 0;
-				int leftTot8 = 0;
-				int leftClassif8 = 0;
-				int leftTot9 = 0;
-				int leftClassif9 = 0;
-				int leftTot10 = 0;
-				int leftClassif10 = 0;
-				for (int r = node.startRow; r <= node.endRow; r++) {
-					int row = selRows[r];
-					int w = weight[row];
-					float rowVal = featuresSplitFeature[row];
-					boolean rowClassif = classif[row];
-					if (rowVal < splitVal1) {
-						if (rowClassif) leftClassif1 += w;
-						leftTot1 += w;
-					} else if (rowVal < splitVal2) {
-						if (rowClassif) leftClassif2 += w;
-						leftTot2 += w;
-					} else if (rowVal < splitVal3) {
-						if (rowClassif) leftClassif3 += w;
-						leftTot3 += w;
-					} else if (rowVal < splitVal4) {
-						if (rowClassif) leftClassif4 += w;
-						leftTot4 += w;
-					} else if (rowVal < splitVal5) {
-						if (rowClassif) leftClassif5 += w;
-						leftTot5 += w;
-					} else if (rowVal < splitVal6) {
-						if (rowClassif) leftClassif6 += w;
-						leftTot6 += w;
-					} else if (rowVal < splitVal7) {
-						if (rowClassif) leftClassif7 += w;
-						leftTot7 += w;
-					} else if (rowVal < splitVal8) {
-						if (rowClassif) leftClassif8 += w;
-						leftTot8 += w;
-					} else if (rowVal < splitVal9) {
-						if (rowClassif) leftClassif9 += w;
-						leftTot9 += w;
-					} else if (rowVal < splitVal10) {
-						if (rowClassif) leftClassif10 += w;
-						leftTot10 += w;
-					}
-				}
-				if (leftTot1 >= minRowsPerNode && node.numRows - leftTot1 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif1, leftTot1, node.classif - leftClassif1, node.numRows - leftTot1);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal1;
-					}
-				}
-				leftTot2 += leftTot1;
-				leftClassif2 += leftClassif1;
-				if (leftTot2 >= minRowsPerNode && node.numRows - leftTot2 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif2, leftTot2, node.classif - leftClassif2, node.numRows - leftTot2);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal2;
-					}
-				}
-				leftTot3 += leftTot2;
-				leftClassif3 += leftClassif2;
-				if (leftTot3 >= minRowsPerNode && node.numRows - leftTot3 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif3, leftTot3, node.classif - leftClassif3, node.numRows - leftTot3);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal3;
-					}
-				}
-				leftTot4 += leftTot3;
-				leftClassif4 += leftClassif3;
-				if (leftTot4 >= minRowsPerNode && node.numRows - leftTot4 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif4, leftTot4, node.classif - leftClassif4, node.numRows - leftTot4);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal4;
-					}
-				}
-				leftTot5 += leftTot4;
-				leftClassif5 += leftClassif4;
-				if (leftTot5 >= minRowsPerNode && node.numRows - leftTot5 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif5, leftTot5, node.classif - leftClassif5, node.numRows - leftTot5);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal5;
-					}
-				}
-				leftTot6 += leftTot5;
-				leftClassif6 += leftClassif5;
-				if (leftTot6 >= minRowsPerNode && node.numRows - leftTot6 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif6, leftTot6, node.classif - leftClassif6, node.numRows - leftTot6);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal6;
-					}
-				}
-				leftTot7 += leftTot6;
-				leftClassif7 += leftClassif6;
-				if (leftTot7 >= minRowsPerNode && node.numRows - leftTot7 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif7, leftTot7, node.classif - leftClassif7, node.numRows - leftTot7);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal7;
-					}
+				candFeature[j] = splitFeature;
+			}
+			searchSplits(sampleRows(node), null, featuresSteps, false);
+			for (int j = 0; j < featuresSteps; j++) {
+				if (candGain[j] > maxSplitGain) {
+					maxSplitGain = candGain[j];
+					nodeSplitFeature[node] = (short) candFeature[j];
+					nodeSplitVal[node] = candVal[j];
 				}
-				leftTot8 += leftTot7;
-				leftClassif8 += leftClassif7;
-				if (leftTot8 >= minRowsPerNode && node.numRows - leftTot8 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif8, leftTot8, node.classif - leftClassif8, node.numRows - leftTot8);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal8;
-					}
+			}
+		} else {
+			for (int j = 0; j < featuresSteps; j++) {
+				int splitFeature = active[rnd.nextInt(active.length)];
+				candFeature[j] = used[splitFeature] == node + 1 ? -1 : splitFeature;
+				used[splitFeature] = node + 1;
+			}
+			searchSplits(h == null ? sampleRows(node) : node, h, featuresSteps, false);
+			for (int j = 0; j < featuresSteps; j++) {
+				if (candGain[j] > maxSplitGain) {
+					maxSplitGain = candGain[j];
+					nodeSplitFeature[node] = (short) candFeature[j];
+					nodeSplitBin[node] = (short) candBin[j];
 				}
-				leftTot9 += leftTot8;
-				leftClassif9 += leftClassif8;
-				if (leftTot9 >= minRowsPerNode && node.numRows - leftTot9 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif9, leftTot9, node.classif - leftClassif9, node.numRows - leftTot9);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal9;
-					}
+			}
+			if (maxSplitGain > 0) nodeSplitVal[node] = data.splitVal(nodeSplitFeature[node], nodeSplitBin[node]);
+		}
+		return maxSplitGain;
+	}
+
+	private int sampleRows(int node) {
+		int m = options.splitSampleRows;
+		if (m <= 0 || nodeEnd[node] - nodeStart[node] + 1 <= m) return node;
+		if (sampleRows == null) {
+			sampleRows = new int[m];
+			sampleStat = new byte[m];
+		}
+		int tot = 0;
+		int classif = 0;
+		int start = nodeStart[node];
+		int len = nodeEnd[node] - start + 1;
+		for (int i = 0; i < m; i++) {
+			int r = start + rnd.nextInt(len);
+			int stat = rowStat[r] & 0xFF;
+			sampleRows[i] = selRows[r];
+			sampleStat[i] = (byte) stat;
+			tot += stat >>> 1;
+			if ((stat & 1) != 0) classif += stat >>> 1;
+		}
+		nodeStart[sampleNode] = 0;
+		nodeEnd[sampleNode] = m - 1;
+		nodeTot[sampleNode] = tot;
+		nodeClassif[sampleNode] = classif;
+		nodeImpurity[sampleNode] = impurity(classif, tot);
+		return sampleNode;
+	}
+
+	private void splitBest(int node, int[][] h, double gain) {
+		int feature = nodeSplitFeature[node];
+		split(node, feature, nodeSplitVal[node], data != null ? nodeSplitBin[node] : -1);
+		if (h != null) subtractHistograms(node, h);
+		if (featureSplits != null) countSplit(node, feature, gain);
+	}
+
+	private void initNodes(int maxNodes) {
+		sampleNode = maxNodes - 1;
+		nodeClassif = new int[maxNodes];
+		nodeTot = new int[maxNodes];
+		nodeStart = new int[maxNodes];
+		nodeEnd = new int[maxNodes];
+		nodeLeft = new int[maxNodes];
+		nodeImpurity = new double[maxNodes];
+		nodeSplitFeature = new short[maxNodes];
+		nodeSplitBin = new short[maxNodes];
+		nodeSplitVal = new float[maxNodes];
+	}
+
+	private int addNode(int classif, int tot, int startRow, int endRow) {
+		int node = nodeCnt++;
+		nodeClassif[node] = classif;
+		nodeTot[node] = tot;
+		nodeStart[node] = startRow;
+		nodeEnd[node] = endRow;
+		nodeImpurity[node] = impurity(classif, tot);
+		nodeLeft[node] = -1;
+		nodeSplitFeature[node] = -1;
+		return node;
+	}
+
+	private void countSplit(int node, int feature, double gain) {
+		featureSplits[feature]++;
+		featureGain[feature] += gain * nodeTot[node];
+	}
+
+	private void outOfBag(int totRows) {
+		long[] inBag = new long[(totRows + 63) >>> 6];
+		for (int row : selRows) {
+			inBag[row >>> 6] |= 1L << row;
+		}
+		float[] values = new float[totRows - selRows.length];
+		int k = 0;
+		for (int row = 0; row < totRows; row++) {
+			if ((inBag[row >>> 6] & (1L << row)) == 0) values[k++] = classify(row);
+		}
+		options.outOfBag.add(inBag, values);
+	}
+
+	private float classify(int row) {
+		int node = 0;
+		while (nodeLeft[node] >= 0) {
+			int f = nodeSplitFeature[node];
+			if (data != null ? (data.bins[f][row] & 0xFF) < nodeSplitBin[node] : features[f][row] < nodeSplitVal[node]) node = nodeLeft[node];
+			else node = nodeLeft[node] + 1;
+		}
+		return value(node);
+	}
+
+	private void release() {
+		selRows = scratchRows = sampleRows = null;
+		rowStat = scratchStat = sampleStat = null;
+		hist = null;
+		nodeHist = null;
+		nodeStart = nodeEnd = null;
+		nodeImpurity = null;
+	}
+
+	private boolean isPure(int node) {
+		return nodeClassif[node] == 0 || nodeClassif[node] == nodeTot[node];
+	}
+
+	int size() {
+		return nodeCnt;
+	}
+
+	int left(int node) {
+		return nodeLeft[node];
+	}
+
+	int splitFeature(int node) {
+		return nodeSplitFeature[node];
+	}
+
+	float splitVal(int node) {
+		return nodeSplitVal[node];
+	}
+
+	float value(int node) {
+		return nodeClassif[node] / (float) nodeTot[node];
+	}
+
+	private void evalRawCandidate(int node, int j) {
+		if (options.splitCounter != null) {
+			evalCountedCandidate(node, j);
+			return;
+		}
+		float[] featuresSplitFeature = features[candFeature[j]];
+		float[] splitVals = candSplitVals[j];
+		int[] selRows = node == sampleNode ? sampleRows : this.selRows;
+		byte[] rowStat = node == sampleNode ? sampleStat : this.rowStat;
+		int minRowsPerNode = this.minRowsPerNode;
+		int numRows = nodeTot[node];
+		int classif = nodeClassif[node];
+		double parentImpurity = nodeImpurity[node];
+		double maxSplitGain = 0;
+		float bestSplitVal = 0;
+		float splitVal1 = splitVals[0];
+		float splitVal2 = splitVals[1];
+		float splitVal3 = splitVals[2];
+		float splitVal4 = splitVals[3];
+		float splitVal5 = splitVals[4];
+		float splitVal6 = splitVals[5];
+		float splitVal7 = splitVals[6];
+		float splitVal8 = splitVals[7];
+		float splitVal9 = splitVals[8];
+		float splitVal10 = splitVals[9];
+		int leftTot1 = 0;
+		int leftClassif1 = 0;
+		int leftTot2 = 0;
+		int leftClassif2 = 0;
+		int leftTot3 = 0;
+		int leftClassif3 = 0;
+		int leftTot4 = 0;
+		int leftClassif4 = 0;
+		int leftTot5 = 0;
+		int leftClassif5 = 0;
+		int leftTot6 = 0;
+		int leftClassif6 = 0;
+		int leftTot7 = 0;
+		int leftClassif7 = 0;
+		int leftTot8 = 0;
+		int leftClassif8 = 0;
+		int leftTot9 = 0;
+		int leftClassif9 = 0;
+		int leftTot10 = 0;
+		int leftClassif10 = 0;
+		for (int r = nodeStart[node]; r <= nodeEnd[node]; r++) {
+			int stat = rowStat[r] & 0xFF;
+			int w = stat >>> 1;
+			float rowVal = featuresSplitFeature[selRows[r]];
+			boolean rowClassif = (stat & 1) != 0;
+			if (rowVal < splitVal1) {
+				if (rowClassif) leftClassif1 += w;
+				leftTot1 += w;
+			} else if (rowVal < splitVal2) {
+				if (rowClassif) leftClassif2 += w;
+				leftTot2 += w;
+			} else if (rowVal < splitVal3) {
+				if (rowClassif) leftClassif3 += w;
+				leftTot3 += w;
+			} else if (rowVal < splitVal4) {
+				if (rowClassif) leftClassif4 += w;
+				leftTot4 += w;
+			} else if (rowVal < splitVal5) {
+				if (rowClassif) leftClassif5 += w;
+				leftTot5 += w;
+			} else if (rowVal < splitVal6) {
+				if (rowClassif) leftClassif6 += w;
+				leftTot6 += w;
+			} else if (rowVal < splitVal7) {
+				if (rowClassif) leftClassif7 += w;
+				leftTot7 += w;
+			} else if (rowVal < splitVal8) {
+				if (rowClassif) leftClassif8 += w;
+				leftTot8 += w;
+			} else if (rowVal < splitVal9) {
+				if (rowClassif) leftClassif9 += w;
+				leftTot9 += w;
+			} else if (rowVal < splitVal10) {
+				if (rowClassif) leftClassif10 += w;
+				leftTot10 += w;
+			}
+		}
+		if (leftTot1 >= minRowsPerNode && numRows - leftTot1 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif1, leftTot1, classif - leftClassif1, numRows - leftTot1);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal1;
+			}
+		}
+		leftTot2 += leftTot1;
+		leftClassif2 += leftClassif1;
+		if (leftTot2 >= minRowsPerNode && numRows - leftTot2 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif2, leftTot2, classif - leftClassif2, numRows - leftTot2);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal2;
+			}
+		}
+		leftTot3 += leftTot2;
+		leftClassif3 += leftClassif2;
+		if (leftTot3 >= minRowsPerNode && numRows - leftTot3 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif3, leftTot3, classif - leftClassif3, numRows - leftTot3);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal3;
+			}
+		}
+		leftTot4 += leftTot3;
+		leftClassif4 += leftClassif3;
+		if (leftTot4 >= minRowsPerNode && numRows - leftTot4 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif4, leftTot4, classif - leftClassif4, numRows - leftTot4);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal4;
+			}
+		}
+		leftTot5 += leftTot4;
+		leftClassif5 += leftClassif4;
+		if (leftTot5 >= minRowsPerNode && numRows - leftTot5 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif5, leftTot5, classif - leftClassif5, numRows - leftTot5);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal5;
+			}
+		}
+		leftTot6 += leftTot5;
+		leftClassif6 += leftClassif5;
+		if (leftTot6 >= minRowsPerNode && numRows - leftTot6 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif6, leftTot6, classif - leftClassif6, numRows - leftTot6);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal6;
+			}
+		}
+		leftTot7 += leftTot6;
+		leftClassif7 += leftClassif6;
+		if (leftTot7 >= minRowsPerNode && numRows - leftTot7 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif7, leftTot7, classif - leftClassif7, numRows - leftTot7);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal7;
+			}
+		}
+		leftTot8 += leftTot7;
+		leftClassif8 += leftClassif7;
+		if (leftTot8 >= minRowsPerNode && numRows - leftTot8 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif8, leftTot8, classif - leftClassif8, numRows - leftTot8);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal8;
+			}
+		}
+		leftTot9 += leftTot8;
+		leftClassif9 += leftClassif8;
+		if (leftTot9 >= minRowsPerNode && numRows - leftTot9 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif9, leftTot9, classif - leftClassif9, numRows - leftTot9);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal9;
+			}
+		}
+		leftTot10 += leftTot9;
+		leftClassif10 += leftClassif9;
+		if (leftTot10 >= minRowsPerNode && numRows - leftTot10 >= minRowsPerNode) {
+			double splitGain = parentImpurity - impurity(leftClassif10, leftTot10, classif - leftClassif10, numRows - leftTot10);
+			if (splitGain > maxSplitGain) {
+				maxSplitGain = splitGain;
+				bestSplitVal = splitVal10;
+			}
+		}
+		candGain[j] = maxSplitGain;
+		candVal[j] = bestSplitVal;
+	}
+
+	private void bootstrap(boolean[] classif, int totRows) {
+		byte[] base = options.rowWeight;
+		byte[] weight = null;
+		double[] limits = null;
+		long seed = 0;
+		if (options.poissonBootstrap) {
+			seed = rnd.nextInt(Integer.MAX_VALUE);
+			limits = poissonLimits(options, totRows);
+		} else {
+			weight = bootstrapWeights(rnd, options, totRows);
+		}
+		Random poisson = weight == null ? new Random(seed) : null;
+		int numSel = 0;
+		for (int i = 0; i < totRows; i++) {
+			int w = weight != null ? weight[i] : poisson(poisson, limits[base == null ? 1 : base[i]]);
+			if (w > 0) numSel++;
+		}
+		selRows = new int[numSel];
+		rowStat = new byte[numSel];
+		if (poisson != null) poisson = new Random(seed);
+		numSel = 0;
+		rootTot = 0;
+		rootClassif = 0;
+		for (int i = 0; i < totRows; i++) {
+			int w = weight != null ? weight[i] : poisson(poisson, limits[base == null ? 1 : base[i]]);
+			if (w > 0) {
+				rootTot += w;
+				if (classif[i]) rootClassif += w;
+				rowStat[numSel] = (byte) ((w << 1) | (classif[i] ? 1 : 0));
+				selRows[numSel++] = i;
+			}
+		}
+	}
+
+	static byte[] bootstrapWeights(int idx, TreeOptions options, int totRows) {
+		return bootstrapWeights(new Random(197209091220L + idx), options, totRows);
+	}
+
+	static byte[] bootstrapWeights(Random rnd, TreeOptions options, int totRows) {
+		byte[] base = options.rowWeight;
+		byte[] weight = new byte[totRows];
+		if (!options.poissonBootstrap) {
+			int[] baseEnd = base == null ? null : options.rowWeightEnd(totRows);
+			long totWeight = base == null ? totRows : baseEnd[totRows - 1];
+			int numDraws = (int) Math.round(totWeight * options.sampleFraction);
+			for (int i = 0; i < numDraws; i++) {
+				int row = base == null ? rnd.nextInt(totRows) : weightedRow(baseEnd, rnd.nextInt((int) totWeight));
+				if (weight[row] < maxRowWeight) weight[row]++;
+			}
+			return weight;
+		}
+		Random poisson = new Random(rnd.nextInt(Integer.MAX_VALUE));
+		double[] limits = poissonLimits(options, totRows);
+		for (int i = 0; i < totRows; i++) {
+			weight[i] = (byte) poisson(poisson, limits[base == null ? 1 : base[i]]);
+		}
+		return weight;
+	}
+
+	private static double[] poissonLimits(TreeOptions options, int totRows) {
+		byte[] base = options.rowWeight;
+		long totWeight = base == null ? totRows : options.rowWeightEnd(totRows)[totRows - 1];
+		int numDraws = (int) Math.round(totWeight * options.sampleFraction);
+		double[] ret = new double[maxRowWeight + 1];
+		for (int w = 0; w <= maxRowWeight; w++) {
+			ret[w] = Math.exp(-(double) numDraws * w / totWeight);
+		}
+		return ret;
+	}
+
+	private static int weightedRow(int[] end, int draw) {
+		int lo = 0;
+		int hi = end.length - 1;
+		while (lo < hi) {
+			int m = (lo + hi) >>> 1;
+			if (end[m] <= draw) lo = m + 1;
+			else hi = m;
+		}
+		return lo;
+	}
+
+	private static int poisson(Random rnd, double limit) {
+		int k = 0;
+		double p = rnd.nextDouble();
+		while (p > limit && k < maxRowWeight) {
+			p *= rnd.nextDouble();
+			k++;
+		}
+		return k;
+	}
+
+	private void split(int node, int splitFeature, float splitVal, int splitBin) {
+		float[] featuresSplitFeature = data == null ? features[splitFeature] : null;
+		byte[] binsSplitFeature = data == null ? null : data.bins[splitFeature];
+		int[] selRows = this.selRows;
+		byte[] rowStat = this.rowStat;
+		int leftTot = 0;
+		int rightTot = 0;
+		int leftClassif = 0;
+		int rightClassif = 0;
+		int startRow = nodeStart[node];
+		int endRow = nodeEnd[node];
+		int endLeft = endRow;
+		if (options.orderedRows) {
+			if (scratchRows == null || scratchRows.length <= endRow - startRow) {
+				scratchRows = new int[endRow - startRow + 1];
+				scratchStat = new byte[scratchRows.length];
+			}
+			int numRight = 0;
+			endLeft = startRow - 1;
+			for (int r = startRow; r <= endRow; r++) {
+				int row = selRows[r];
+				int stat = rowStat[r] & 0xFF;
+				int w = stat >>> 1;
+				if (binsSplitFeature == null ? featuresSplitFeature[row] < splitVal : (binsSplitFeature[row] & 0xFF) < splitBin) {
+					if ((stat & 1) != 0) leftClassif += w;
+					leftTot += w;
+					selRows[++endLeft] = row;
+					rowStat[endLeft] = (byte) stat;
+				} else {
+					if ((stat & 1) != 0) rightClassif += w;
+					rightTot += w;
+					scratchRows[numRight] = row;
+					scratchStat[numRight++] = (byte) stat;
 				}
-				leftTot10 += leftTot9;
-				leftClassif10 += leftClassif9;
-				if (leftTot10 >= minRowsPerNode && node.numRows - leftTot10 >= minRowsPerNode) {
-					double splitGain = node.impurity - impurity(leftClassif10, leftTot10, node.classif - leftClassif10, node.numRows - leftTot10);
-					if (splitGain > maxSplitGain) {
-						maxSplitGain = splitGain;
-						bestSplitFeature = splitFeature;
-						bestSplitVal = splitVal10;
-					}
+			}
+			System.arraycopy(scratchRows, 0, selRows, endLeft + 1, numRight);
+			System.arraycopy(scratchStat, 0, rowStat, endLeft + 1, numRight);
+		} else {
+			for (int r = startRow; r <= endLeft; r++) {
+				int row = selRows[r];
+				int stat = rowStat[r] & 0xFF;
+				int w = stat >>> 1;
+				if (binsSplitFeature == null ? featuresSplitFeature[row] < splitVal : (binsSplitFeature[row] & 0xFF) < splitBin) {
+					if ((stat & 1) != 0) leftClassif += w;
+					leftTot += w;
+				} else {
+					if ((stat & 1) != 0) rightClassif += w;
+					rightTot += w;
+					selRows[r] = selRows[endLeft];
+					rowStat[r--] = rowStat[endLeft];
+					selRows[endLeft] = row;
+					rowStat[endLeft--] = (byte) stat;
 				}
 			}
-			if (bestSplitFeature >= 0) {
-				int leftTot = 0;
-				int rightTot = 0;
-				int leftClassif = 0;
-				int rightClassif = 0;
-				int endLeft = node.endRow;
-				float[] featuresSplitFeature = features[bestSplitFeature];
-				for (int r = node.startRow; r <= endLeft; r++) {
-					int row = selRows[r];
-					int w = weight[row];
-					if (featuresSplitFeature[row] < bestSplitVal) {
-						if (classif[row]) leftClassif += w;
-						leftTot += w;
-					} else {
-						if (classif[row]) rightClassif += w;
-						rightTot += w;
-						selRows[r--] = selRows[endLeft];
-						selRows[endLeft--] = row;
-					}
+		}
+		nodeLeft[node] = addNode(leftClassif, leftTot, startRow, endLeft);
+		addNode(rightClassif, rightTot, endLeft + 1, endRow);
+		nodeSplitVal[node] = splitVal;
+		nodeSplitFeature[node] = (short) splitFeature;
+		nodeSplitBin[node] = (short) splitBin;
+	}
+
+	private void evalCountedCandidate(int node, int j) {
+		float[] splitVals = candSplitVals[j];
+		int[] leftTot = new int[splitVals.length];
+		int[] leftClassif = new int[splitVals.length];
+		options.splitCounter.count(features[candFeature[j]], node == sampleNode ? sampleRows : selRows, node == sampleNode ? sampleStat : rowStat, nodeStart[node], nodeEnd[node], splitVals, leftTot,
+				leftClassif);
+		int numRows = nodeTot[node];
+		int classif = nodeClassif[node];
+		double parentImpurity = nodeImpurity[node];
+		double maxSplitGain = 0;
+		float bestSplitVal = 0;
+		for (int k = 0; k < splitVals.length; k++) {
+			if (leftTot[k] >= minRowsPerNode && numRows - leftTot[k] >= minRowsPerNode) {
+				double splitGain = parentImpurity - impurity(leftClassif[k], leftTot[k], classif - leftClassif[k], numRows - leftTot[k]);
+				if (splitGain > maxSplitGain) {
+					maxSplitGain = splitGain;
+					bestSplitVal = splitVals[k];
 				}
-				node.left = new ClassificationNode(leftClassif, leftTot, impurity(leftClassif, leftTot), node.level + 1, node.startRow, endLeft);
-				node.right = new ClassificationNode(rightClassif, rightTot, impurity(rightClassif, rightTot), node.level + 1, endLeft + 1, node.endRow);
-				nodes[nodeCnt++] = node.left;
-				nodes[nodeCnt++] = node.right;
-				node.splitVal = bestSplitVal;
-				node.splitFeature = bestSplitFeature;
 			}
 		}
-		System.err.println("\t\t" + idx + "\t" + nodeCnt + " nodes\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		candGain[j] = maxSplitGain;
+		candVal[j] = bestSplitVal;
+	}
+
+	private void evalBinnedCandidate(int node, int[][] h, int j) {
+		int splitFeature = candFeature[j];
+		candGain[j] = 0;
+		if (splitFeature < 0) return;
+		int[] hf = h != null ? h[splitFeature] : histogram(node, splitFeature, hist);
+		int numBins = data.numBins(splitFeature) - 1;
+		int numRows = nodeTot[node];
+		int classif = nodeClassif[node];
+		double parentImpurity = nodeImpurity[node];
+		int leftTot = 0;
+		int leftClassif = 0;
+		for (int b = 1; b < numBins; b++) {
+			leftTot += hf[(b - 1) << 1];
+			leftClassif += hf[((b - 1) << 1) + 1];
+			if (leftTot < minRowsPerNode) continue;
+			if (numRows - leftTot < minRowsPerNode) break;
+			double splitGain = parentImpurity - impurity(leftClassif, leftTot, classif - leftClassif, numRows - leftTot);
+			if (splitGain > candGain[j]) {
+				candGain[j] = splitGain;
+				candBin[j] = b;
+			}
+		}
+	}
+
+	private int[] histogram(int node, int feature, int[][] hist) {
+		int[] h = hist[feature];
+		if (h == null) h = hist[feature] = new int[BinnedFeatures.maxBins << 1];
+		else Arrays.fill(h, 0);
+		byte[] binsFeature = data.bins[feature];
+		int[] selRows = node == sampleNode ? sampleRows : this.selRows;
+		byte[] rowStat = node == sampleNode ? sampleStat : this.rowStat;
+		for (int r = nodeStart[node]; r <= nodeEnd[node]; r++) {
+			int stat = rowStat[r] & 0xFF;
+			int w = stat >>> 1;
+			int b = (binsFeature[selRows[r]] & 0xFF) << 1;
+			h[b] += w;
+			if ((stat & 1) != 0) h[b + 1] += w;
+		}
+		return h;
+	}
 
+	private int[][] histograms(int node) {
+		int[][] ret = new int[data.numFeatures][];
+		searchSplits(node, ret, data.numFeatures, true);
+		return ret;
 	}
 
-	public ClassificationNode getRoot() {
-		return root;
+	private void subtractHistograms(int node, int[][] parentHist) {
+		int small = nodeLeft[node];
+		int large = small + 1;
+		if (nodeEnd[small] - nodeStart[small] > nodeEnd[large] - nodeStart[large]) {
+			small = large;
+			large = small - 1;
+		}
+		if (nodeEnd[large] - nodeStart[large] + 1 < histCacheMinRows) return;
+		int[][] smallHist = histograms(small);
+		for (int f = 0; f < data.numFeatures; f++) {
+			int[] p = parentHist[f];
+			int[] s = smallHist[f];
+			for (int b = 0; b < p.length; b++) {
+				p[b] -= s[b];
+			}
+		}
+		nodeHist[small] = smallHist;
+		nodeHist[large] = parentHist;
+	}
+
+	private void searchSplits(int node, int[][] h, int n, boolean allFeatures) {
+		if (options.pool != null && nodeEnd[node] - nodeStart[node] + 1 >= options.parallelMinRows) {
+			options.pool.invoke(new SplitTask(node, h, 0, n, allFeatures));
+		} else {
+			for (int j = 0; j < n; j++) {
+				searchSplit(node, h, j, allFeatures);
+			}
+		}
+	}
+
+	private void searchSplit(int node, int[][] h, int j, boolean allFeatures) {
+		if (allFeatures) histogram(node, j, h);
+		else if (data != null) evalBinnedCandidate(node, h, j);
+		else evalRawCandidate(node, j);
+	}
+
+	private class SplitTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int node;
+		private final int[][] h;
+		private final int lo, hi;
+		private final boolean allFeatures;
+
+		SplitTask(int node, int[][] h, int lo, int hi, boolean allFeatures) {
+			this.node = node;
+			this.h = h;
+			this.lo = lo;
+			this.hi = hi;
+			this.allFeatures = allFeatures;
+		}
+
+		protected void compute() {
+			if (hi - lo == 1) {
+				searchSplit(node, h, lo, allFeatures);
+			} else {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new SplitTask(node, h, lo, mid, allFeatures), new SplitTask(node, h, mid, hi, allFeatures));
+			}
+		}
 	}
 
 	private final double impurity(int cnt, int tot) {
-		if (tot <= 1) return 0;
-		double lt = log[tot];
-		double val = 0;
-		if (cnt > 0) val -= cnt * (log[cnt] - lt) / tot;
-		cnt = tot - cnt;
-		if (cnt > 0) val -= cnt * (log[cnt] - lt) / tot;
-		return val;
+		return options.impurity.impurity(cnt, tot);
 	}
 
 	private final double impurity(int cnt1, int tot1, int cnt2, int tot2) {
 		return (impurity(cnt1, tot1) * tot1 + impurity(cnt2, tot2) * tot2) / (tot1 + tot2);
 	}
 
-	private final int randomNodeRow(int[] rows, ClassificationNode node, Random rnd) {
-		return rows[rnd.nextInt(node.endRow - node.startRow + 1) + node.startRow];
+	private final int randomNodeRow(int node) {
+		return selRows[rnd.nextInt(nodeEnd[node] - nodeStart[node] + 1) + nodeStart[node]];
 	}
 }
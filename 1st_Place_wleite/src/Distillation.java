@@ -0,0 +1,77 @@
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Distillation {
+	private static final int holdOut = 10;
+
+	public static RandomForestPredictor distill(RandomForestPredictor teacher, float[][] features, int totRows, int maxTrees, int maxDepth, double shrinkage, File out, int maxThreads,
+			int minRowsPerNode, TreeOptions options) {
+		long t = System.currentTimeMillis();
+		float[] target = label(teacher, features, totRows, maxThreads);
+		System.err.println("\t\tLabeled " + totRows + " rows\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		boolean[] classif = new boolean[totRows];
+		for (int i = 0; i < totRows; i++) {
+			classif[i] = target[i] >= 0.5f;
+		}
+		byte[] base = options.rowWeight;
+		byte[] weight = new byte[totRows];
+		for (int i = 0; i < totRows; i++) {
+			weight[i] = i % holdOut == 0 ? 0 : base == null ? 1 : base[i];
+		}
+		options.rowWeight = weight;
+		RandomForestPredictor student = GradientBoostingBuilder.train(BinnedFeatures.build(features, classif, totRows), target, maxTrees, maxDepth, shrinkage, out, maxThreads, minRowsPerNode, options);
+		options.rowWeight = base;
+		double[] gap = fidelity(student, features, totRows, target);
+		System.err.println("\t      Teacher: " + teacher.size() + " trees, " + teacher.nodes() + " nodes");
+		System.err.println("\t      Student: " + student.size() + " trees, " + student.nodes() + " nodes");
+		System.err.println("\t Fidelity Gap: mae=" + gap[0] + " rmse=" + gap[1] + " max=" + gap[2]);
+		return student;
+	}
+
+	public static float[] label(final RandomForestPredictor teacher, final float[][] features, final int totRows, int maxThreads) {
+		final float[] ret = new float[totRows];
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = new Thread[Math.min(maxThreads, Runtime.getRuntime().availableProcessors())];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					float[] row = new float[features.length];
+					int i;
+					while ((i = next.getAndIncrement()) < totRows) {
+						for (int f = 0; f < row.length; f++) {
+							row[f] = features[f][i];
+						}
+						ret[i] = (float) teacher.predict(row);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		try {
+			for (Thread t : threads) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+		}
+		return ret;
+	}
+
+	private static double[] fidelity(RandomForestPredictor student, float[][] features, int totRows, float[] target) {
+		float[] row = new float[features.length];
+		double sum = 0;
+		double sum2 = 0;
+		double max = 0;
+		int cnt = 0;
+		for (int i = 0; i < totRows; i += holdOut) {
+			for (int f = 0; f < row.length; f++) {
+				row[f] = features[f][i];
+			}
+			double d = Math.abs(student.predict(row) - target[i]);
+			sum += d;
+			sum2 += d * d;
+			max = Math.max(max, d);
+			cnt++;
+		}
+		return new double[] {sum / cnt, Math.sqrt(sum2 / cnt), max};
+	}
+}
@@ -0,0 +1,96 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+
+public class FeatureImportance {
+	private final int[] splits;
+	private final double[] gain;
+	private int trees;
+
+	public FeatureImportance(int numFeatures) {
+		splits = new int[numFeatures];
+		gain = new double[numFeatures];
+	}
+
+	synchronized void add(int[] treeSplits, double[] treeGain) {
+		for (int f = 0; f < splits.length; f++) {
+			splits[f] += treeSplits[f];
+			gain[f] += treeGain[f];
+		}
+		trees++;
+	}
+
+	synchronized void add(FeatureImportance other) {
+		for (int f = 0; f < splits.length; f++) {
+			splits[f] += other.splits[f];
+			gain[f] += other.gain[f];
+		}
+		trees += other.trees;
+	}
+
+	public synchronized int[] getSplits() {
+		return splits.clone();
+	}
+
+	public synchronized double[] getGain() {
+		return gain.clone();
+	}
+
+	public synchronized boolean[] select(int[] featureGroup, double[] groupCost, double keepGain) {
+		int numGroups = groupCost.length;
+		double[] groupGain = new double[numGroups];
+		double totGain = 0;
+		for (int f = 0; f < gain.length; f++) {
+			groupGain[featureGroup[f]] += gain[f];
+			totGain += gain[f];
+		}
+		boolean[] keepGroup = new boolean[numGroups];
+		double kept = 0;
+		while (kept < keepGain * totGain) {
+			int best = -1;
+			for (int g = 0; g < numGroups; g++) {
+				if (keepGroup[g] || groupGain[g] <= 0) continue;
+				if (best < 0 || groupGain[g] * groupCost[best] > groupGain[best] * groupCost[g]) best = g;
+			}
+			if (best < 0) break;
+			keepGroup[best] = true;
+			kept += groupGain[best];
+		}
+		boolean[] ret = new boolean[gain.length];
+		for (int f = 0; f < ret.length; f++) {
+			ret[f] = keepGroup[featureGroup[f]];
+		}
+		return ret;
+	}
+
+	public synchronized void save(File file) throws Exception {
+		BufferedWriter out = new BufferedWriter(new FileWriter(file));
+		out.write("#" + trees);
+		out.newLine();
+		for (int f = 0; f < splits.length; f++) {
+			out.write(f + "," + splits[f] + "," + gain[f]);
+			out.newLine();
+		}
+		out.close();
+	}
+
+	public static FeatureImportance load(File file, int numFeatures) throws Exception {
+		FeatureImportance ret = new FeatureImportance(numFeatures);
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		String line = null;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith("#")) {
+				ret.trees = Integer.parseInt(line.substring(1));
+				continue;
+			}
+			String[] parts = line.split(",");
+			int f = Integer.parseInt(parts[0]);
+			ret.splits[f] = Integer.parseInt(parts[1]);
+			ret.gain[f] = Double.parseDouble(parts[2]);
+		}
+		in.close();
+		return ret;
+	}
+}
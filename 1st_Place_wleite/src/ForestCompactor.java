@@ -0,0 +1,230 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ForestCompactor {
+	private final RandomForestPredictor rf;
+	private final float[][] features;
+	private final boolean[] classif;
+	private final int totRows, stride, numEval;
+	private final TreeOptions options;
+	private final byte[] rowWeight;
+	private final double epsilon, pruneTolerance;
+	private final int[][] treeLeft;
+	private final short[][] treeFeature;
+	private final float[][] treeValue;
+	private final float[][] treePredict;
+
+	public static RandomForestPredictor compact(RandomForestPredictor rf, float[][] features, boolean[] classif, int totRows, TreeOptions options, int stride, double epsilon,
+			double pruneTolerance, double selectTolerance, int maxThreads) {
+		long t = System.currentTimeMillis();
+		rf.unpack();
+		final ForestCompactor fc = new ForestCompactor(rf, features, classif, totRows, options, stride, epsilon, pruneTolerance);
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = new Thread[Math.min(maxThreads, Runtime.getRuntime().availableProcessors())];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					int tree;
+					while ((tree = next.getAndIncrement()) < fc.rf.size()) {
+						fc.compactTree(tree);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		try {
+			for (Thread th : threads) {
+				th.join();
+			}
+		} catch (InterruptedException e) {
+		}
+		int[] order = rf.isBoosted() ? null : fc.select(selectTolerance);
+		int numTrees = order == null ? rf.size() : order.length;
+		int nodes = 0;
+		for (int i = 0; i < numTrees; i++) {
+			nodes += fc.treeLeft[order == null ? i : order[i]].length;
+		}
+		RandomForestPredictor ret = new RandomForestPredictor(numTrees, nodes);
+		if (rf.isBoosted()) ret.boost(rf.bias());
+		for (int i = 0; i < numTrees; i++) {
+			int tree = order == null ? i : order[i];
+			ret.add(rf.treeId(tree), fc.treeLeft[tree].length, fc.treeLeft[tree], fc.treeFeature[tree], fc.treeValue[tree]);
+		}
+		System.err.println("\t\tCompacted " + rf.size() + " trees, " + rf.nodes() + " nodes into " + ret.size() + " trees, " + ret.nodes() + " nodes\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		return ret;
+	}
+
+	private ForestCompactor(RandomForestPredictor rf, float[][] features, boolean[] classif, int totRows, TreeOptions options, int stride, double epsilon, double pruneTolerance) {
+		this.rf = rf;
+		this.features = features;
+		this.classif = classif;
+		this.totRows = totRows;
+		this.options = options;
+		this.stride = stride;
+		numEval = (totRows + stride - 1) / stride;
+		rowWeight = options.rowWeight;
+		this.epsilon = epsilon;
+		this.pruneTolerance = pruneTolerance;
+		treeLeft = new int[rf.size()][];
+		treeFeature = new short[rf.size()][];
+		treeValue = new float[rf.size()][];
+		treePredict = new float[rf.size()][];
+	}
+
+	private void compactTree(int tree) {
+		int rt = rf.root(tree);
+		int n = rf.treeSize(tree);
+		int[] left = new int[n];
+		short[] feature = new short[n];
+		float[] value = new float[n];
+		for (int i = 0; i < n; i++) {
+			int l = rf.left(rt + i);
+			left[i] = l < 0 ? -1 : l - rt;
+			feature[i] = (short) rf.feature(rt + i);
+			value[i] = rf.value(rt + i);
+		}
+		byte[] inBag = rf.isBoosted() ? null : ClassificationTree.bootstrapWeights(rf.treeId(tree), options, totRows);
+		int[] size = new int[n];
+		int[] cnt = new int[n];
+		int[] pos = new int[n];
+		for (int row = 0; row < totRows; row += stride) {
+			int node = leaf(left, feature, value, row);
+			int w = rowWeight == null ? 1 : rowWeight[row];
+			if (inBag != null && inBag[row] > 0) {
+				size[node] += inBag[row];
+				continue;
+			}
+			if (inBag == null) size[node] += w;
+			cnt[node] += w;
+			if (classif[row]) pos[node] += w;
+		}
+		for (int node = n - 1; node >= 0; node--) {
+			int l = left[node];
+			if (l < 0 || left[l] >= 0 || left[l + 1] >= 0) continue;
+			int s = size[l] + size[l + 1];
+			int c = cnt[l] + cnt[l + 1];
+			float v = s == 0 ? (value[l] + value[l + 1]) / 2 : (float) ((size[l] * (double) value[l] + size[l + 1] * (double) value[l + 1]) / s);
+			boolean merge = Math.abs(value[l] - value[l + 1]) < epsilon;
+			if (!merge && inBag != null && cnt[l] > 0 && cnt[l + 1] > 0) {
+				double delta = error(v, c, pos[l] + pos[l + 1]) - error(value[l], cnt[l], pos[l]) - error(value[l + 1], cnt[l + 1], pos[l + 1]);
+				merge = delta <= pruneTolerance * c;
+			}
+			if (!merge) continue;
+			left[node] = -1;
+			feature[node] = -1;
+			value[node] = v;
+			size[node] = s;
+			cnt[node] = c;
+			pos[node] = pos[l] + pos[l + 1];
+		}
+		int[] map = new int[n];
+		int[] queue = new int[n];
+		int m = 1;
+		for (int k = 0; k < m; k++) {
+			int node = queue[k];
+			map[node] = k;
+			if (left[node] < 0) continue;
+			queue[m++] = left[node];
+			queue[m++] = left[node] + 1;
+		}
+		int[] newLeft = new int[m];
+		short[] newFeature = new short[m];
+		float[] newValue = new float[m];
+		for (int k = 0; k < m; k++) {
+			int node = queue[k];
+			newLeft[k] = left[node] < 0 ? -1 : map[left[node]];
+			newFeature[k] = feature[node];
+			newValue[k] = value[node];
+		}
+		float[] predict = null;
+		if (inBag != null) {
+			predict = new float[numEval];
+			for (int k = 0; k < numEval; k++) {
+				int row = k * stride;
+				predict[k] = inBag[row] > 0 ? Float.NaN : newValue[leaf(newLeft, newFeature, newValue, row)];
+			}
+		}
+		treeLeft[tree] = newLeft;
+		treeFeature[tree] = newFeature;
+		treeValue[tree] = newValue;
+		treePredict[tree] = predict;
+	}
+
+	private int leaf(int[] left, short[] feature, float[] value, int row) {
+		int node = 0;
+		while (left[node] >= 0) {
+			node = features[feature[node]][row] < value[node] ? left[node] : left[node] + 1;
+		}
+		return node;
+	}
+
+	private static double error(double v, int cnt, int pos) {
+		return pos * (1 - v) * (1 - v) + (cnt - pos) * v * v;
+	}
+
+	private int[] select(double selectTolerance) {
+		int numTrees = rf.size();
+		double posWeight = 0;
+		double totWeight = 0;
+		for (int k = 0; k < numEval; k++) {
+			int w = rowWeight == null ? 1 : rowWeight[k * stride];
+			totWeight += w;
+			if (classif[k * stride]) posWeight += w;
+		}
+		double prior = totWeight == 0 ? 0 : posWeight / totWeight;
+		double[] sum = new double[numEval];
+		int[] num = new int[numEval];
+		for (float[] p : treePredict) {
+			add(sum, num, p);
+		}
+		double target = mse(sum, num, null, prior) * (1 + selectTolerance);
+		boolean[] used = new boolean[numTrees];
+		int[] order = new int[numTrees];
+		double[] cur = new double[numEval];
+		int[] curNum = new int[numEval];
+		for (int k = 0; k < numTrees; k++) {
+			int best = -1;
+			double bestErr = 0;
+			for (int tree = 0; tree < numTrees; tree++) {
+				if (used[tree]) continue;
+				double err = mse(cur, curNum, treePredict[tree], prior);
+				if (best < 0 || err < bestErr) {
+					best = tree;
+					bestErr = err;
+				}
+			}
+			used[best] = true;
+			order[k] = best;
+			add(cur, curNum, treePredict[best]);
+			if (bestErr <= target) return Arrays.copyOf(order, k + 1);
+		}
+		return order;
+	}
+
+	private void add(double[] sum, int[] num, float[] p) {
+		for (int k = 0; k < numEval; k++) {
+			if (Float.isNaN(p[k])) continue;
+			sum[k] += p[k];
+			num[k]++;
+		}
+	}
+
+	private double mse(double[] sum, int[] num, float[] add, double prior) {
+		double err = 0;
+		double tot = 0;
+		for (int k = 0; k < numEval; k++) {
+			int row = k * stride;
+			double s = sum[k];
+			int c = num[k];
+			if (add != null && !Float.isNaN(add[k])) {
+				s += add[k];
+				c++;
+			}
+			double d = (c == 0 ? prior : s / c) - (classif[row] ? 1 : 0);
+			int w = rowWeight == null ? 1 : rowWeight[row];
+			err += d * d * w;
+			tot += w;
+		}
+		return tot == 0 ? 0 : err / tot;
+	}
+}
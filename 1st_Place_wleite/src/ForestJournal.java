@@ -0,0 +1,165 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class ForestJournal {
+	private static final int marker = 0x52464a31;
+	private static final int headerMarker = 0x52464a48;
+	private static final int headerSize = 28;
+	private final File file;
+	private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+	private final Entry end = new Entry(-1, 0, null, null, null);
+	private final Thread writer;
+	private DataOutputStream out;
+
+	private static class Entry {
+		final int idx, n;
+		final int[] left;
+		final short[] feature;
+		final float[] value;
+
+		Entry(int idx, int n, int[] left, short[] feature, float[] value) {
+			this.idx = idx;
+			this.n = n;
+			this.left = left;
+			this.feature = feature;
+			this.value = value;
+		}
+	}
+
+	static File journalFile(File out) {
+		return new File(out.getPath() + ".journal");
+	}
+
+	ForestJournal(File file, RandomForestPredictor rf, int firstTree, boolean[] done, long key, int totRows, int maxNodes) throws Exception {
+		this.file = file;
+		int lastTree = firstTree + done.length;
+		if (file.exists() && !matches(key, totRows, maxNodes, firstTree, lastTree)) {
+			System.err.println("\t\tIgnoring stale journal " + file.getPath());
+			file.delete();
+		}
+		boolean fresh = !file.exists();
+		if (!fresh) replay(rf, firstTree, done);
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 20));
+		if (fresh) {
+			out.writeInt(headerMarker);
+			out.writeLong(key);
+			out.writeInt(totRows);
+			out.writeInt(maxNodes);
+			out.writeInt(firstTree);
+			out.writeInt(lastTree);
+			out.flush();
+		}
+		writer = new Thread() {
+			public void run() {
+				try {
+					Entry e;
+					while ((e = queue.take()) != end) {
+						write(e);
+						if (queue.isEmpty()) out.flush();
+					}
+					out.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		writer.start();
+	}
+
+	void append(int idx, ClassificationTree tree) {
+		int n = tree.size();
+		int[] left = new int[n];
+		short[] feature = new short[n];
+		float[] value = new float[n];
+		for (int i = 0; i < n; i++) {
+			left[i] = tree.left(i);
+			feature[i] = (short) (left[i] < 0 ? -1 : tree.splitFeature(i));
+			value[i] = left[i] < 0 ? tree.value(i) : tree.splitVal(i);
+		}
+		append(idx, n, left, feature, value);
+	}
+
+	void append(int idx, int n, int[] left, short[] feature, float[] value) {
+		queue.add(new Entry(idx, n, left, feature, value));
+	}
+
+	void close() {
+		queue.add(end);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+		}
+	}
+
+	void delete() {
+		file.delete();
+	}
+
+	private void write(Entry e) throws Exception {
+		out.writeInt(marker);
+		out.writeInt(e.idx);
+		out.writeInt(e.n);
+		for (int i = 0; i < e.n; i++) {
+			out.writeInt(e.left[i]);
+			out.writeShort(e.feature[i]);
+			out.writeFloat(e.value[i]);
+		}
+		out.writeInt(e.n);
+	}
+
+	private boolean matches(long key, int totRows, int maxNodes, int firstTree, int lastTree) throws Exception {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		boolean ret = false;
+		try {
+			ret = in.readInt() == headerMarker && in.readLong() == key && in.readInt() == totRows && in.readInt() == maxNodes && in.readInt() == firstTree && in.readInt() == lastTree;
+		} catch (EOFException e) {
+		}
+		in.close();
+		return ret;
+	}
+
+	private void replay(RandomForestPredictor rf, int firstTree, boolean[] done) throws Exception {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+		in.readFully(new byte[headerSize]);
+		long valid = headerSize;
+		int cnt = 0;
+		try {
+			while (true) {
+				if (in.readInt() != marker) break;
+				int idx = in.readInt();
+				int n = in.readInt();
+				int[] left = new int[n];
+				short[] feature = new short[n];
+				float[] value = new float[n];
+				for (int i = 0; i < n; i++) {
+					left[i] = in.readInt();
+					feature[i] = in.readShort();
+					value[i] = in.readFloat();
+				}
+				if (in.readInt() != n) break;
+				valid += 16 + n * 10L;
+				int k = idx - firstTree;
+				if (k < 0 || k >= done.length || done[k]) continue;
+				done[k] = true;
+				rf.add(idx, n, left, feature, value);
+				cnt++;
+			}
+		} catch (EOFException e) {
+		}
+		in.close();
+		if (valid < file.length()) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(valid);
+			raf.close();
+		}
+		System.err.println("\t\tResumed " + cnt + " trees from " + file.getPath());
+	}
+}
@@ -0,0 +1,283 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GradientBoostingBuilder {
+	private static final double lambda = 1;
+	private final BinnedFeatures data;
+	private final TreeOptions options;
+	private final int totRows, maxDepth, minRowsPerNode, numThreads;
+	private final double shrinkage;
+	private final int[] active;
+	private final byte[] weight;
+	private final float[] target;
+	private final double[] score;
+	private final float[] grad, hess;
+	private final int[] rows;
+	private final int maxNodes;
+	private int nodeCnt, numRows;
+	private final int[] nodeStart, nodeEnd, nodeLeft, nodeCount;
+	private final short[] nodeFeature, nodeBin;
+	private final float[] nodeSplitVal, nodeValue;
+	private final double[] nodeGrad, nodeHess;
+	private double[][] candGain;
+	private int[][] candBin;
+
+	public static RandomForestPredictor train(float[][] features, boolean[] classif, int totSamples, int maxTrees, int maxDepth, double shrinkage, File out, int maxThreads, int minRowsPerNode,
+			TreeOptions options) {
+		return train(BinnedFeatures.build(features, classif, totSamples), maxTrees, maxDepth, shrinkage, out, maxThreads, minRowsPerNode, options);
+	}
+
+	public static RandomForestPredictor train(BinnedFeatures data, int maxTrees, int maxDepth, double shrinkage, File out, int maxThreads, int minRowsPerNode, TreeOptions options) {
+		return train(data, null, maxTrees, maxDepth, shrinkage, out, maxThreads, minRowsPerNode, options);
+	}
+
+	public static RandomForestPredictor train(BinnedFeatures data, float[] target, int maxTrees, int maxDepth, double shrinkage, File out, int maxThreads, int minRowsPerNode, TreeOptions options) {
+		int numThreads = Math.min(maxThreads, Runtime.getRuntime().availableProcessors());
+		GradientBoostingBuilder gb = new GradientBoostingBuilder(data, target, maxDepth, shrinkage, numThreads, minRowsPerNode, options);
+		RandomForestPredictor rf = new RandomForestPredictor(maxTrees, maxTrees * gb.maxNodes);
+		rf.boost(gb.bias());
+		long t = System.currentTimeMillis();
+		for (int i = 0; i < maxTrees; i++) {
+			gb.grow(i);
+			synchronized (rf) {
+				gb.addTo(rf, i);
+				if (rf.size() % 8 == 0 || i == maxTrees - 1) {
+					try {
+						rf.save(out);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			System.err.println("\t\t" + i + "\t" + gb.nodeCnt + " nodes\tloss=" + gb.loss() + "\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		}
+		return rf;
+	}
+
+	private GradientBoostingBuilder(BinnedFeatures data, float[] target, int maxDepth, double shrinkage, int numThreads, int minRowsPerNode, TreeOptions options) {
+		this.data = data;
+		this.target = target;
+		this.maxDepth = maxDepth;
+		this.shrinkage = shrinkage;
+		this.numThreads = numThreads;
+		this.minRowsPerNode = minRowsPerNode;
+		this.options = options;
+		totRows = data.size();
+		active = options.activeFeatures(data.numFeatures);
+		weight = options.rowWeight;
+		score = new double[totRows];
+		grad = new float[totRows];
+		hess = new float[totRows];
+		rows = new int[totRows];
+		maxNodes = (1 << (maxDepth + 1)) - 1;
+		nodeStart = new int[maxNodes];
+		nodeEnd = new int[maxNodes];
+		nodeLeft = new int[maxNodes];
+		nodeCount = new int[maxNodes];
+		nodeFeature = new short[maxNodes];
+		nodeBin = new short[maxNodes];
+		nodeSplitVal = new float[maxNodes];
+		nodeValue = new float[maxNodes];
+		nodeGrad = new double[maxNodes];
+		nodeHess = new double[maxNodes];
+		Arrays.fill(score, bias());
+	}
+
+	private float bias() {
+		double pos = 0;
+		double tot = 0;
+		for (int i = 0; i < totRows; i++) {
+			int w = weight == null ? 1 : weight[i];
+			tot += w;
+			pos += w * label(i);
+		}
+		double p = Math.min(Math.max(pos / tot, 1e-6), 1 - 1e-6);
+		return (float) Math.log(p / (1 - p));
+	}
+
+	private double label(int row) {
+		return target != null ? target[row] : data.classif[row] ? 1 : 0;
+	}
+
+	private double loss() {
+		double sum = 0;
+		double tot = 0;
+		for (int i = 0; i < totRows; i++) {
+			int w = weight == null ? 1 : weight[i];
+			double s = score[i];
+			sum += w * ((s > 0 ? s + Math.log1p(Math.exp(-s)) : Math.log1p(Math.exp(s))) - label(i) * s);
+			tot += w;
+		}
+		return sum / tot;
+	}
+
+	private void grow(int idx) {
+		Random rnd = new Random(197209091220L + idx);
+		numRows = 0;
+		for (int i = 0; i < totRows; i++) {
+			int w = weight == null ? 1 : weight[i];
+			if (w == 0 || (options.sampleFraction < 1 && rnd.nextDouble() >= options.sampleFraction)) continue;
+			double p = 1 / (1 + Math.exp(-score[i]));
+			grad[i] = (float) (w * (p - label(i)));
+			hess[i] = (float) (w * Math.max(p * (1 - p), 1e-6));
+			rows[numRows++] = i;
+		}
+		nodeCnt = 0;
+		addNode(0, numRows - 1);
+		int[] featureSplits = options.importance == null ? null : new int[data.numFeatures];
+		double[] featureGain = options.importance == null ? null : new double[data.numFeatures];
+		int levelStart = 0;
+		for (int depth = 0; depth < maxDepth; depth++) {
+			int levelEnd = nodeCnt;
+			search(levelStart, levelEnd);
+			for (int node = levelStart; node < levelEnd; node++) {
+				int best = -1;
+				double bestGain = 0;
+				for (int j = 0; j < active.length; j++) {
+					if (candGain[node - levelStart][j] > bestGain) {
+						bestGain = candGain[node - levelStart][j];
+						best = j;
+					}
+				}
+				if (best < 0) continue;
+				split(node, active[best], candBin[node - levelStart][best]);
+				if (featureSplits != null) {
+					featureSplits[active[best]]++;
+					featureGain[active[best]] += bestGain;
+				}
+			}
+			if (nodeCnt == levelEnd) break;
+			levelStart = levelEnd;
+		}
+		for (int node = 0; node < nodeCnt; node++) {
+			if (nodeLeft[node] >= 0) continue;
+			nodeFeature[node] = -1;
+			nodeValue[node] = (float) (-shrinkage * nodeGrad[node] / (nodeHess[node] + lambda));
+		}
+		if (options.importance != null) options.importance.add(featureSplits, featureGain);
+		for (int i = 0; i < totRows; i++) {
+			int node = 0;
+			while (nodeLeft[node] >= 0) {
+				node = (data.bins[nodeFeature[node]][i] & 0xFF) < nodeBin[node] ? nodeLeft[node] : nodeLeft[node] + 1;
+			}
+			score[i] += nodeValue[node];
+		}
+	}
+
+	private void addNode(int start, int end) {
+		int node = nodeCnt++;
+		nodeStart[node] = start;
+		nodeEnd[node] = end;
+		nodeLeft[node] = -1;
+		double g = 0;
+		double h = 0;
+		int cnt = 0;
+		for (int r = start; r <= end; r++) {
+			int row = rows[r];
+			g += grad[row];
+			h += hess[row];
+			cnt += weight == null ? 1 : weight[row];
+		}
+		nodeGrad[node] = g;
+		nodeHess[node] = h;
+		nodeCount[node] = cnt;
+	}
+
+	private void search(final int levelStart, final int levelEnd) {
+		candGain = new double[levelEnd - levelStart][active.length];
+		candBin = new int[levelEnd - levelStart][active.length];
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = new Thread[Math.min(numThreads, active.length)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					double[] hg = new double[BinnedFeatures.maxBins];
+					double[] hh = new double[BinnedFeatures.maxBins];
+					int[] hc = new int[BinnedFeatures.maxBins];
+					int j;
+					while ((j = next.getAndIncrement()) < active.length) {
+						for (int node = levelStart; node < levelEnd; node++) {
+							if (nodeCount[node] >= minRowsPerNode * 2) evalFeature(node, levelStart, j, hg, hh, hc);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		try {
+			for (Thread t : threads) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private void evalFeature(int node, int levelStart, int j, double[] hg, double[] hh, int[] hc) {
+		int f = active[j];
+		int numBins = data.numBins(f) - 1;
+		Arrays.fill(hg, 0);
+		Arrays.fill(hh, 0);
+		Arrays.fill(hc, 0);
+		byte[] bins = data.bins[f];
+		for (int r = nodeStart[node]; r <= nodeEnd[node]; r++) {
+			int row = rows[r];
+			int b = bins[row] & 0xFF;
+			hg[b] += grad[row];
+			hh[b] += hess[row];
+			hc[b] += weight == null ? 1 : weight[row];
+		}
+		double g = nodeGrad[node];
+		double h = nodeHess[node];
+		int cnt = nodeCount[node];
+		double parent = g * g / (h + lambda);
+		double leftGrad = 0;
+		double leftHess = 0;
+		int leftCnt = 0;
+		double bestGain = 0;
+		int bestBin = 0;
+		for (int b = 1; b < numBins; b++) {
+			leftGrad += hg[b - 1];
+			leftHess += hh[b - 1];
+			leftCnt += hc[b - 1];
+			if (leftCnt < minRowsPerNode) continue;
+			if (cnt - leftCnt < minRowsPerNode) break;
+			double rightGrad = g - leftGrad;
+			double gain = leftGrad * leftGrad / (leftHess + lambda) + rightGrad * rightGrad / (h - leftHess + lambda) - parent;
+			if (gain > bestGain) {
+				bestGain = gain;
+				bestBin = b;
+			}
+		}
+		candGain[node - levelStart][j] = bestGain;
+		candBin[node - levelStart][j] = bestBin;
+	}
+
+	private void split(int node, int feature, int bin) {
+		byte[] bins = data.bins[feature];
+		int lo = nodeStart[node];
+		int hi = nodeEnd[node];
+		while (lo <= hi) {
+			if ((bins[rows[lo]] & 0xFF) < bin) lo++;
+			else {
+				int tmp = rows[lo];
+				rows[lo] = rows[hi];
+				rows[hi--] = tmp;
+			}
+		}
+		nodeFeature[node] = (short) feature;
+		nodeBin[node] = (short) bin;
+		nodeSplitVal[node] = data.splitVal(feature, bin);
+		nodeLeft[node] = nodeCnt;
+		addNode(nodeStart[node], lo - 1);
+		addNode(lo, nodeEnd[node]);
+	}
+
+	private void addTo(RandomForestPredictor rf, int idx) {
+		float[] val = new float[nodeCnt];
+		for (int node = 0; node < nodeCnt; node++) {
+			val[node] = nodeLeft[node] < 0 ? nodeValue[node] : nodeSplitVal[node];
+		}
+		rf.add(idx, nodeCnt, nodeLeft, nodeFeature, val);
+	}
+}
@@ -0,0 +1,64 @@
+public interface Impurity {
+	Impurity ENTROPY = new Entropy();
+	Impurity GINI = new Gini();
+	Impurity FAST_ENTROPY = new FastEntropy();
+
+	double impurity(int cnt, int tot);
+
+	class Entropy implements Impurity {
+		private static final double[] log = new double[1 << 16];
+
+		static {
+			for (int i = 1; i < log.length; i++) {
+				log[i] = Math.log(i);
+			}
+		}
+
+		public double impurity(int cnt, int tot) {
+			if (tot <= 1) return 0;
+			double lt = log(tot);
+			double val = 0;
+			if (cnt > 0) val -= cnt * (log(cnt) - lt) / tot;
+			cnt = tot - cnt;
+			if (cnt > 0) val -= cnt * (log(cnt) - lt) / tot;
+			return val;
+		}
+
+		private static double log(int v) {
+			return v < log.length ? log[v] : Math.log(v);
+		}
+	}
+
+	class Gini implements Impurity {
+		public double impurity(int cnt, int tot) {
+			if (tot <= 1) return 0;
+			double p = cnt / (double) tot;
+			return 2 * p * (1 - p);
+		}
+	}
+
+	class FastEntropy implements Impurity {
+		public double impurity(int cnt, int tot) {
+			if (tot <= 1) return 0;
+			double lt = log(tot);
+			double val = 0;
+			if (cnt > 0) val -= cnt * (log(cnt) - lt) / tot;
+			cnt = tot - cnt;
+			if (cnt > 0) val -= cnt * (log(cnt) - lt) / tot;
+			return val;
+		}
+
+		private static double log(int v) {
+			long bits = Double.doubleToRawLongBits(v);
+			int e = (int) (bits >>> 52) - 1023;
+			double m = Double.longBitsToDouble((bits & 0x000FFFFFFFFFFFFFL) | 0x3FF0000000000000L);
+			if (m > 1.4142135623730951) {
+				m *= 0.5;
+				e++;
+			}
+			double t = (m - 1) / (m + 1);
+			double t2 = t * t;
+			return e * 0.6931471805599453 + 2 * t * (1 + t2 * (1 / 3.0 + t2 * (0.2 + t2 / 7)));
+		}
+	}
+}
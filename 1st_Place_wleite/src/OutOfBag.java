@@ -0,0 +1,64 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class OutOfBag {
+	private final boolean[] classif;
+	private final int totRows;
+	private final float[] sum;
+	private final short[] cnt;
+	private final double tolerance;
+	private final int window;
+	private final byte[] weight;
+	private final List<Double> errors = new ArrayList<Double>();
+
+	public OutOfBag(boolean[] classif, int totRows, double tolerance, int window) {
+		this(classif, null, totRows, tolerance, window);
+	}
+
+	public OutOfBag(boolean[] classif, byte[] weight, int totRows, double tolerance, int window) {
+		this.classif = classif;
+		this.weight = weight;
+		this.totRows = totRows;
+		this.tolerance = tolerance;
+		this.window = window;
+		sum = new float[totRows];
+		cnt = new short[totRows];
+	}
+
+	synchronized void add(long[] inBag, float[] values) {
+		int k = 0;
+		double err = 0;
+		long covered = 0;
+		int rows = 0;
+		for (int row = 0; row < totRows; row++) {
+			if ((inBag[row >>> 6] & (1L << row)) == 0) {
+				sum[row] += values[k++];
+				cnt[row]++;
+			}
+			if (cnt[row] > 0) {
+				double d = sum[row] / cnt[row] - (classif[row] ? 1 : 0);
+				int w = weight == null ? 1 : weight[row];
+				err += d * d * w;
+				covered += w;
+				rows++;
+			}
+		}
+		err = covered == 0 ? 0 : err / covered;
+		errors.add(err);
+		System.err.println("\t\tOOB\t" + errors.size() + " trees\t" + err + "\t" + rows + "/" + totRows + " rows");
+	}
+
+	public synchronized boolean converged() {
+		int t = errors.size();
+		if (tolerance <= 0 || t < 2 * window) return false;
+		return Math.abs(errors.get(t - 1) - errors.get(t - 1 - window)) < tolerance;
+	}
+
+	public synchronized double[] getErrors() {
+		double[] ret = new double[errors.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = errors.get(i);
+		}
+		return ret;
+	}
+}
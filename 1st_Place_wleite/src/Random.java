@@ -40,6 +40,10 @@ public class Random {
 		return y ^ (y >> 18);
 	}
 
+	double nextDouble() {
+		return rand() / 4294967296.0;
+	}
+
 	int nextInt(int n) {
 		if (n <= 1) return 0;
 		return (int) (rand() % n);
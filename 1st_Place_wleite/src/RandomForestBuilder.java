@@ -1,43 +1,172 @@
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 
 public class RandomForestBuilder {
 	public static RandomForestPredictor train(final float[][] features, final boolean[] classif, final int totSamples, final int maxTrees, final int maxNodes, final File out, final int maxThreads,
 			final int minRowsPerNode) {
-		final RandomForestPredictor rf = new RandomForestPredictor(maxTrees, maxTrees * maxNodes);
+		return train(features, classif, null, totSamples, maxTrees, maxNodes, out, maxThreads, minRowsPerNode, new TreeOptions());
+	}
+
+	public static RandomForestPredictor train(final float[][] features, final boolean[] classif, final int totSamples, final int maxTrees, final int maxNodes, final File out, final int maxThreads,
+			final int minRowsPerNode, final TreeOptions options) {
+		return train(features, classif, null, totSamples, maxTrees, maxNodes, out, maxThreads, minRowsPerNode, options);
+	}
+
+	public static RandomForestPredictor train(final BinnedFeatures data, final int maxTrees, final int maxNodes, final File out, final int maxThreads, final int minRowsPerNode, final TreeOptions options) {
+		return train(null, null, data, data.size(), maxTrees, maxNodes, out, maxThreads, minRowsPerNode, options);
+	}
+
+	public static RandomForestPredictor extend(final RandomForestPredictor rf, final float[][] features, final boolean[] classif, final int totSamples, final int moreTrees, final int maxNodes,
+			final File out, final int maxThreads, final int minRowsPerNode, final TreeOptions options) {
+		return train(rf, features, classif, totSamples, rf.nextTreeId(), rf.nextTreeId() + moreTrees, maxNodes, out, maxThreads, minRowsPerNode, options);
+	}
+
+	public static RandomForestPredictor extend(final RandomForestPredictor rf, final BinnedFeatures data, final int moreTrees, final int maxNodes, final File out, final int maxThreads,
+			final int minRowsPerNode, final TreeOptions options) {
+		return train(rf, data, rf.nextTreeId(), rf.nextTreeId() + moreTrees, maxNodes, out, maxThreads, minRowsPerNode, options);
+	}
 
-		final int numThreads = Math.min(maxThreads, Runtime.getRuntime().availableProcessors());
+	public static RandomForestPredictor train(final RandomForestPredictor rf, final float[][] features, final boolean[] classif, final int totSamples, final int firstTree, final int lastTree,
+			final int maxNodes, final File out, final int maxThreads, final int minRowsPerNode, final TreeOptions options) {
+		return train(rf, features, classif, null, totSamples, firstTree, lastTree, maxNodes, out, maxThreads, minRowsPerNode, options);
+	}
+
+	public static RandomForestPredictor train(final RandomForestPredictor rf, final BinnedFeatures data, final int firstTree, final int lastTree, final int maxNodes, final File out,
+			final int maxThreads, final int minRowsPerNode, final TreeOptions options) {
+		return train(rf, null, null, data, data.size(), firstTree, lastTree, maxNodes, out, maxThreads, minRowsPerNode, options);
+	}
+
+	private static RandomForestPredictor train(final float[][] features, final boolean[] classif, final BinnedFeatures data, final int totSamples, final int maxTrees, final int maxNodes, final File out,
+			final int maxThreads, final int minRowsPerNode, final TreeOptions options) {
+		return train(new RandomForestPredictor(maxTrees, maxTrees * maxNodes), features, classif, data, totSamples, 0, maxTrees, maxNodes, out, maxThreads, minRowsPerNode, options);
+	}
+
+	private static RandomForestPredictor train(final RandomForestPredictor rf, final float[][] features, final boolean[] classif, final BinnedFeatures data, final int totSamples, final int firstTree,
+			final int lastTree, final int maxNodes, final File out, final int maxThreads, final int minRowsPerNode, final TreeOptions options) {
+
+		final int maxConcurrent = Math.min(maxThreads, Runtime.getRuntime().availableProcessors());
+		final boolean[] done = new boolean[Math.max(0, lastTree - firstTree)];
+		final ForestJournal journal;
+		try {
+			journal = new ForestJournal(ForestJournal.journalFile(out), rf, firstTree, done, journalKey(features, classif, data, totSamples, minRowsPerNode, options), totSamples, maxNodes);
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		if (data != null && options.levelBatch > 0) return trainLevelwise(rf, data, firstTree, lastTree, done, journal, maxNodes, out, maxConcurrent, minRowsPerNode, options);
+		final int numThreads = concurrentTrees(totSamples, data != null ? data.numFeatures : features.length, maxNodes, data != null, maxConcurrent, options);
+		if (options.parallelSplitSearch && options.pool == null) options.pool = new ForkJoinPool(maxConcurrent, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+				ForkJoinWorkerThread th = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				th.setPriority(Thread.MIN_PRIORITY);
+				return th;
+			}
+		}, null, false);
 		Thread[] threads = new Thread[numThreads];
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[numThreads];
 		for (int i = 0; i < numThreads; i++) {
 			final int idx = i;
-			threads[i] = new Thread() {
+			Runnable builder = new Runnable() {
 				public void run() {
-					for (int i = idx; i < maxTrees; i += numThreads) {
-						ClassificationNode root = new ClassificationTree(features, classif, totSamples, i, minRowsPerNode, maxNodes).getRoot();
+					for (int i = firstTree + idx; i < lastTree; i += numThreads) {
+						if (options.outOfBag != null && options.outOfBag.converged()) break;
+						if (done[i - firstTree]) continue;
+						ClassificationTree tree = data != null ? new ClassificationTree(data, i, minRowsPerNode, maxNodes, options) : new ClassificationTree(features, classif, totSamples, i, minRowsPerNode, maxNodes, options);
 						synchronized (rf) {
-							rf.add(root);
-							if (rf.size() % 8 == 0) {
-								try {
-									rf.save(out);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-							}
+							rf.add(i, tree);
 						}
+						journal.append(i, tree);
 					}
 				}
 			};
+			if (options.pool != null) {
+				tasks[i] = options.pool.submit(builder);
+				continue;
+			}
+			threads[i] = new Thread(builder);
 			threads[i].start();
 			threads[i].setPriority(Thread.MIN_PRIORITY);
 		}
 		try {
 			for (int i = 0; i < numThreads; i++) {
-				threads[i].join();
+				if (tasks[i] != null) tasks[i].join();
+				else threads[i].join();
 			}
 		} catch (InterruptedException e) {
+		} finally {
+			if (options.pool != null) {
+				options.pool.shutdown();
+				options.pool = null;
+			}
+			journal.close();
 		}
+		return finish(rf, out, journal);
+	}
+
+	private static RandomForestPredictor trainLevelwise(final RandomForestPredictor rf, final BinnedFeatures data, final int firstTree, final int lastTree, final boolean[] done,
+			final ForestJournal journal, final int maxNodes, final File out, final int numThreads, final int minRowsPerNode, final TreeOptions options) {
+		int[] batch = new int[options.levelBatch];
+		int i = firstTree;
+		try {
+			while (i < lastTree) {
+				if (options.outOfBag != null && options.outOfBag.converged()) break;
+				int cnt = 0;
+				for (; i < lastTree && cnt < batch.length; i++) {
+					if (!done[i - firstTree]) batch[cnt++] = i;
+				}
+				if (cnt == 0) break;
+				TreeBatch tb = new TreeBatch(data, Arrays.copyOf(batch, cnt), minRowsPerNode, maxNodes, numThreads, options);
+				synchronized (rf) {
+					tb.addTo(rf, journal);
+				}
+			}
+		} finally {
+			journal.close();
+		}
+		return finish(rf, out, journal);
+	}
+
+	private static long journalKey(float[][] features, boolean[] classif, BinnedFeatures data, int totSamples, int minRowsPerNode, TreeOptions options) {
+		long h = data != null ? 1 : 2;
+		h = h * 31 + minRowsPerNode;
+		h = h * 31 + options.impurity.getClass().getName().hashCode();
+		h = h * 31 + Double.doubleToLongBits(options.sampleFraction);
+		h = h * 31 + (options.poissonBootstrap ? 1 : 0);
+		h = h * 31 + (options.bestFirst ? 1 : 0);
+		h = h * 31 + (options.orderedRows ? 1 : 0);
+		h = h * 31 + options.splitSampleRows;
+		h = h * 31 + (options.featureMask == null ? 0 : Arrays.hashCode(options.featureMask));
+		h = h * 31 + (options.rowWeight == null ? 0 : Arrays.hashCode(options.rowWeight));
+		boolean[] label = data != null ? data.classif : classif;
+		int numFeatures = data != null ? data.numFeatures : features.length;
+		h = h * 31 + numFeatures;
+		int step = Math.max(1, totSamples / 4096);
+		for (int i = 0; i < totSamples; i++) {
+			if (label[i]) h = h * 31 + i;
+			if (i % step != 0) continue;
+			for (int f = 0; f < numFeatures; f++) {
+				h = h * 31 + (data != null ? data.bins[f][i] : Float.floatToRawIntBits(features[f][i]));
+			}
+		}
+		return h;
+	}
+
+	private static int concurrentTrees(int totRows, int numFeatures, int maxNodes, boolean binned, int maxConcurrent, TreeOptions options) {
+		Runtime rt = Runtime.getRuntime();
+		long budget = options.heapBudget > 0 ? options.heapBudget : (rt.maxMemory() - rt.totalMemory() + rt.freeMemory()) / 10 * 9;
+		long perTree = ClassificationTree.workingSet(totRows, numFeatures, maxNodes, binned, options);
+		int ret = (int) Math.max(1, Math.min(maxConcurrent, budget / perTree));
+		System.err.println("\t\tHeap budget " + (budget >> 20) + " MB, " + (perTree >> 20) + " MB per tree, " + ret + " concurrent trees");
+		return ret;
+	}
+
+	private static RandomForestPredictor finish(RandomForestPredictor rf, File out, ForestJournal journal) {
 		try {
 			rf.save(out);
+			journal.delete();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
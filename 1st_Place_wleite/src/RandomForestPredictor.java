@@ -3,16 +3,35 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
 
 public class RandomForestPredictor {
-	private final int[] roots;
-	private final int[] nodeLeft;
-	private final short[] splitFeature;
-	private final float[] value;
+	private int[] roots, ids;
+	private int[] nodeLeft;
+	private short[] splitFeature;
+	private float[] value;
 	private int trees, free;
+	private boolean[] usedFeatures;
+	private boolean boosted;
+	private float bias;
+	private volatile LongBuffer packed;
+	private volatile double[][] remaining;
+	private volatile TreeCompiler.Program compiled;
+	private static final LongBuffer unpacked = LongBuffer.allocate(0);
+	private static final int packedMagic = 0x52465042;
+	private static final int featureBits = 11;
+	private static final int leafFeature = (1 << featureBits) - 1;
 
 	public static RandomForestPredictor loadPredictor(File rfFile) {
 		try {
@@ -25,42 +44,415 @@ public class RandomForestPredictor {
 
 	public RandomForestPredictor(int maxTrees, int nodes) {
 		roots = new int[maxTrees];
+		ids = new int[maxTrees];
 		nodeLeft = new int[nodes];
 		splitFeature = new short[nodes];
 		value = new float[nodes];
 	}
 
-	public synchronized void add(ClassificationNode root) {
+	public synchronized void add(int id, ClassificationTree tree) {
+		int n = tree.size();
+		int rt = reserve(id, n);
+		for (int i = 0; i < n; i++) {
+			int pos = rt + i;
+			int l = tree.left(i);
+			if (l < 0) {
+				nodeLeft[pos] = -1;
+				splitFeature[pos] = -1;
+				value[pos] = tree.value(i);
+			} else {
+				nodeLeft[pos] = rt + l;
+				splitFeature[pos] = (short) tree.splitFeature(i);
+				value[pos] = tree.splitVal(i);
+			}
+		}
+	}
+
+	synchronized void add(int id, int n, int[] left, short[] feature, float[] val) {
+		int rt = reserve(id, n);
+		for (int i = 0; i < n; i++) {
+			int pos = rt + i;
+			nodeLeft[pos] = left[i] < 0 ? -1 : rt + left[i];
+			splitFeature[pos] = left[i] < 0 ? -1 : feature[i];
+			value[pos] = val[i];
+		}
+	}
+
+	void boost(float bias) {
+		boosted = true;
+		this.bias = bias;
+	}
+
+	private int reserve(int id, int n) {
+		unpack();
+		if (trees == roots.length) {
+			roots = Arrays.copyOf(roots, Math.max(8, trees * 2));
+			ids = Arrays.copyOf(ids, roots.length);
+		}
+		if (free + n > nodeLeft.length) {
+			int len = Math.max(free + n, nodeLeft.length * 3 / 2);
+			nodeLeft = Arrays.copyOf(nodeLeft, len);
+			splitFeature = Arrays.copyOf(splitFeature, len);
+			value = Arrays.copyOf(value, len);
+		}
+		usedFeatures = null;
+		packed = null;
+		remaining = null;
+		compiled = null;
+		ids[trees] = id;
 		int rt = roots[trees++] = free;
-		free++;
-		expand(root, rt);
+		free += n;
+		return rt;
+	}
+
+	public synchronized void add(RandomForestPredictor other) {
+		if (trees > 0 && other.trees > 0 && (other.boosted != boosted || other.bias != bias)) {
+			throw new IllegalArgumentException(boosted != other.boosted ? "Cannot merge a boosted model with an averaged one" : "Cannot merge boosted models with different biases");
+		}
+		HashSet<Integer> seen = new HashSet<Integer>();
+		for (int i = 0; i < trees; i++) {
+			seen.add(ids[i]);
+		}
+		for (int i = 0; i < other.trees; i++) {
+			if (!seen.add(other.ids[i])) throw new IllegalArgumentException("Cannot merge models sharing tree id " + other.ids[i]);
+		}
+		unpack();
+		other.unpack();
+		int n = other.free;
+		if (trees + other.trees > roots.length) {
+			roots = Arrays.copyOf(roots, trees + other.trees);
+			ids = Arrays.copyOf(ids, roots.length);
+		}
+		if (free + n > nodeLeft.length) {
+			int len = free + n;
+			nodeLeft = Arrays.copyOf(nodeLeft, len);
+			splitFeature = Arrays.copyOf(splitFeature, len);
+			value = Arrays.copyOf(value, len);
+		}
+		usedFeatures = null;
+		packed = null;
+		remaining = null;
+		compiled = null;
+		if (trees == 0) {
+			boosted = other.boosted;
+			bias = other.bias;
+		}
+		for (int i = 0; i < other.trees; i++) {
+			ids[trees] = other.ids[i];
+			roots[trees++] = free + other.roots[i];
+		}
+		for (int i = 0; i < n; i++) {
+			int l = other.nodeLeft[i];
+			nodeLeft[free + i] = l < 0 ? -1 : free + l;
+		}
+		System.arraycopy(other.splitFeature, 0, splitFeature, free, n);
+		System.arraycopy(other.value, 0, value, free, n);
+		free += n;
+	}
+
+	public static RandomForestPredictor merge(File... parts) throws Exception {
+		RandomForestPredictor ret = new RandomForestPredictor(0, 0);
+		for (File part : parts) {
+			try {
+				ret.add(load(part));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(part.getPath() + ": " + e.getMessage());
+			}
+		}
+		return ret;
+	}
+
+	public synchronized boolean[] usedFeatures(int numFeatures) {
+		if (usedFeatures == null || usedFeatures.length != numFeatures) {
+			usedFeatures = new boolean[numFeatures];
+			LongBuffer p = nodeLeft.length < free ? packed : null;
+			for (int i = 0; i < free; i++) {
+				int sf = p == null ? splitFeature[i] : (int) p.get(i) & leafFeature;
+				if (sf >= 0 && sf != leafFeature) usedFeatures[sf] = true;
+			}
+		}
+		return usedFeatures;
 	}
 
 	public int size() {
 		return trees;
 	}
 
-	private void expand(ClassificationNode node, int pos) {
-		if (node.left == null) {
-			nodeLeft[pos] = -1;
-			splitFeature[pos] = -1;
-			value[pos] = node.getValue();
-		} else {
-			int l = nodeLeft[pos] = free;
-			free += 2;
-			splitFeature[pos] = (short) node.splitFeature;
-			value[pos] = node.splitVal;
-			expand(node.left, l);
-			expand(node.right, l + 1);
+	public int nodes() {
+		return free;
+	}
+
+	int treeId(int tree) {
+		return ids[tree];
+	}
+
+	public int nextTreeId() {
+		int ret = 0;
+		for (int i = 0; i < trees; i++) {
+			ret = Math.max(ret, ids[i] + 1);
+		}
+		return ret;
+	}
+
+	int root(int tree) {
+		return roots[tree];
+	}
+
+	int treeSize(int tree) {
+		return (tree + 1 < trees ? roots[tree + 1] : free) - roots[tree];
+	}
+
+	int left(int pos) {
+		return nodeLeft[pos];
+	}
+
+	int feature(int pos) {
+		return splitFeature[pos];
+	}
+
+	float value(int pos) {
+		return value[pos];
+	}
+
+	boolean isBoosted() {
+		return boosted;
+	}
+
+	float bias() {
+		return bias;
+	}
+
+	public synchronized void compile() {
+		unpack();
+		try {
+			compiled = TreeCompiler.compile(this);
+		} catch (Exception e) {
+			e.printStackTrace();
 		}
 	}
 
 	public double predict(float[] features) {
+		TreeCompiler.Program c = compiled;
+		if (c != null) {
+			double ret = 0;
+			for (int t = 0; t < trees; t++) {
+				TreeCompiler.Chunk chunk = c.chunk[t];
+				if (chunk != null) {
+					ret = chunk.add(ret, features);
+					t = c.end[t] - 1;
+				} else {
+					ret += classify(roots[t], features);
+				}
+			}
+			return output(ret);
+		}
+		LongBuffer p = packed();
 		double ret = 0;
-		for (int root : roots) {
-			ret += classify(root, features);
+		if (p != unpacked) {
+			for (int i = 0; i < trees; i++) {
+				ret += classify(p, roots[i], features);
+			}
+		} else {
+			for (int i = 0; i < trees; i++) {
+				ret += classify(roots[i], features);
+			}
+		}
+		return output(ret);
+	}
+
+	public void predict(float[][] rows, int n, double[] out) {
+		LongBuffer p = packed();
+		TreeCompiler.Program c = compiled;
+		Arrays.fill(out, 0, n, 0);
+		for (int t = 0; t < trees; t++) {
+			int rt = roots[t];
+			TreeCompiler.Chunk chunk = c == null ? null : c.chunk[t];
+			if (chunk != null) {
+				for (int i = 0; i < n; i++) {
+					out[i] = chunk.add(out[i], rows[i]);
+				}
+				t = c.end[t] - 1;
+			} else if (p != unpacked) {
+				for (int i = 0; i < n; i++) {
+					out[i] += classify(p, rt, rows[i]);
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					out[i] += classify(rt, rows[i]);
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			out[i] = output(out[i]);
+		}
+	}
+
+	public void predictColumns(float[][] columns, int n, double[] out) {
+		LongBuffer p = packed();
+		Arrays.fill(out, 0, n, 0);
+		for (int t = 0; t < trees; t++) {
+			int rt = roots[t];
+			if (p != unpacked) {
+				for (int i = 0; i < n; i++) {
+					out[i] += classify(p, rt, columns, i);
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					out[i] += classify(rt, columns, i);
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			out[i] = output(out[i]);
+		}
+	}
+
+	public int predictBounded(float[][] rows, int n, double lo, double hi, double[] out, boolean[] bounded) {
+		LongBuffer p = packed();
+		double[][] r = remaining();
+		double[] remMin = r[0];
+		double[] remMax = r[1];
+		double loSum = inverse(lo);
+		double hiSum = inverse(hi);
+		int[] active = new int[n];
+		for (int i = 0; i < n; i++) {
+			active[i] = i;
+			out[i] = 0;
+			bounded[i] = false;
+		}
+		int numActive = n;
+		for (int t = 0; t < trees && numActive > 0; t++) {
+			int rt = roots[t];
+			double min = remMin[t + 1];
+			double max = remMax[t + 1];
+			int k = 0;
+			for (int j = 0; j < numActive; j++) {
+				int i = active[j];
+				double sum = out[i] += p != unpacked ? classify(p, rt, rows[i]) : classify(rt, rows[i]);
+				if (t + 1 < trees && (sum + max < loSum || sum + min > hiSum)) {
+					double est = boosted ? sum : sum * trees / (t + 1);
+					out[i] = output(Math.max(sum + min, Math.min(sum + max, est)));
+					bounded[i] = true;
+				} else {
+					active[k++] = i;
+				}
+			}
+			numActive = k;
+		}
+		for (int j = 0; j < numActive; j++) {
+			int i = active[j];
+			out[i] = output(out[i]);
+		}
+		return n - numActive;
+	}
+
+	private double inverse(double v) {
+		if (!boosted) return v * trees;
+		if (v <= 0) return Double.NEGATIVE_INFINITY;
+		if (v >= 1) return Double.POSITIVE_INFINITY;
+		return Math.log(v / (1 - v)) - bias;
+	}
+
+	private double[][] remaining() {
+		double[][] r = remaining;
+		return r != null ? r : leafRange();
+	}
+
+	private synchronized double[][] leafRange() {
+		if (remaining != null) return remaining;
+		LongBuffer p = nodeLeft.length < free ? packed : null;
+		double[] remMin = new double[trees + 1];
+		double[] remMax = new double[trees + 1];
+		for (int t = trees - 1; t >= 0; t--) {
+			float min = Float.POSITIVE_INFINITY;
+			float max = Float.NEGATIVE_INFINITY;
+			int rt = roots[t];
+			int end = rt + treeSize(t);
+			for (int pos = rt; pos < end; pos++) {
+				float v;
+				if (p != null) {
+					long node = p.get(pos);
+					if (((int) node & leafFeature) != leafFeature) continue;
+					v = Float.intBitsToFloat((int) (node >>> 32));
+				} else {
+					if (splitFeature[pos] >= 0) continue;
+					v = value[pos];
+				}
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			remMin[t] = remMin[t + 1] + min;
+			remMax[t] = remMax[t + 1] + max;
+		}
+		return remaining = new double[][] {remMin, remMax};
+	}
+
+	private double output(double sum) {
+		if (boosted) return 1 / (1 + Math.exp(-bias - sum));
+		return sum / trees;
+	}
+
+	private LongBuffer packed() {
+		LongBuffer p = packed;
+		return p != null ? p : pack();
+	}
+
+	private synchronized LongBuffer pack() {
+		if (packed != null) return packed;
+		long[] p = new long[free];
+		int[] stackNode = new int[free];
+		int[] stackPos = new int[free];
+		int[] size = new int[free];
+		for (int i = free - 1; i >= 0; i--) {
+			size[i] = nodeLeft[i] < 0 ? 1 : 1 + size[nodeLeft[i]] + size[nodeLeft[i] + 1];
+		}
+		for (int t = 0; t < trees; t++) {
+			int next = roots[t] + 1;
+			int sp = 0;
+			stackNode[sp] = roots[t];
+			stackPos[sp++] = roots[t];
+			while (sp > 0) {
+				int node = stackNode[--sp];
+				int pos = stackPos[sp];
+				long bits = (long) Float.floatToRawIntBits(value[node]) << 32;
+				int sf = splitFeature[node];
+				if (sf < 0) {
+					p[pos] = bits | leafFeature;
+					continue;
+				}
+				int off = next - pos;
+				if (sf >= leafFeature || off >= 1 << (32 - featureBits)) return packed = unpacked;
+				p[pos] = bits | ((((long) off) << featureBits) | sf);
+				int l = nodeLeft[node];
+				int first = size[l] >= size[l + 1] ? 0 : 1;
+				stackNode[sp] = l + 1 - first;
+				stackPos[sp++] = next + 1 - first;
+				stackNode[sp] = l + first;
+				stackPos[sp++] = next + first;
+				next += 2;
+			}
+		}
+		return packed = LongBuffer.wrap(p);
+	}
+
+	private static double classify(LongBuffer p, int pos, float[] features) {
+		while (true) {
+			long node = p.get(pos);
+			int sf = (int) node & leafFeature;
+			float v = Float.intBitsToFloat((int) (node >>> 32));
+			if (sf == leafFeature) return v;
+			pos += ((int) node >>> featureBits) + (features[sf] < v ? 0 : 1);
+		}
+	}
+
+	private static double classify(LongBuffer p, int pos, float[][] columns, int row) {
+		while (true) {
+			long node = p.get(pos);
+			int sf = (int) node & leafFeature;
+			float v = Float.intBitsToFloat((int) (node >>> 32));
+			if (sf == leafFeature) return v;
+			pos += ((int) node >>> featureBits) + (columns[sf][row] < v ? 0 : 1);
 		}
-		return ret / roots.length;
 	}
 
 	private double classify(int pos, float[] features) {
@@ -72,9 +464,89 @@ public class RandomForestPredictor {
 		}
 	}
 
-	public void save(File file) throws Exception {
-		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+	private double classify(int pos, float[][] columns, int row) {
+		while (true) {
+			int sf = splitFeature[pos];
+			if (sf < 0) return value[pos];
+			if (columns[sf][row] < value[pos]) pos = nodeLeft[pos];
+			else pos = nodeLeft[pos] + 1;
+		}
+	}
+
+	public synchronized void savePacked(File file) throws Exception {
+		LongBuffer p = packed();
+		if (p == unpacked) throw new IllegalStateException("Model does not fit the packed layout");
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+		out.writeInt(packedMagic);
+		out.writeInt(boosted ? 1 : 0);
+		out.writeFloat(bias);
 		out.writeInt(trees);
+		out.writeInt(free);
+		for (int i = 0; i < trees; i++) {
+			out.writeInt(roots[i]);
+		}
+		if (((5 + trees) & 1) != 0) out.writeInt(0);
+		for (int i = 0; i < free; i++) {
+			out.writeLong(p.get(i));
+		}
+		for (int i = 0; i < trees; i++) {
+			out.writeInt(ids[i]);
+		}
+		out.close();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static RandomForestPredictor loadMapped(File file) throws Exception {
+		FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		ch.close();
+		buf.getInt();
+		boolean boosted = buf.getInt() != 0;
+		float bias = buf.getFloat();
+		int trees = buf.getInt();
+		int nodes = buf.getInt();
+		RandomForestPredictor predictor = new RandomForestPredictor(trees, 0);
+		for (int i = 0; i < trees; i++) {
+			predictor.roots[i] = buf.getInt();
+		}
+		if (((5 + trees) & 1) != 0) buf.getInt();
+		LongBuffer p = buf.slice().asLongBuffer();
+		if (p.remaining() < nodes) throw new EOFException("Truncated model " + file.getPath());
+		buf.position(buf.position() + nodes * 8);
+		for (int i = 0; i < trees; i++) {
+			predictor.ids[i] = buf.remaining() >= 4 * (trees - i) ? buf.getInt() : i;
+		}
+		predictor.trees = trees;
+		predictor.free = nodes;
+		predictor.boosted = boosted;
+		predictor.bias = bias;
+		predictor.packed = p;
+		System.err.println("TREES=" + trees + " : AVG.NODES=" + nodes / Math.max(1, trees) + " : MAPPED");
+		return predictor;
+	}
+
+	synchronized void unpack() {
+		if (nodeLeft.length >= free) return;
+		LongBuffer p = packed;
+		nodeLeft = new int[free];
+		splitFeature = new short[free];
+		value = new float[free];
+		for (int i = 0; i < free; i++) {
+			long node = p.get(i);
+			int sf = (int) node & leafFeature;
+			value[i] = Float.intBitsToFloat((int) (node >>> 32));
+			nodeLeft[i] = sf == leafFeature ? -1 : i + ((int) node >>> featureBits);
+			splitFeature[i] = (short) (sf == leafFeature ? -1 : sf);
+		}
+	}
+
+	public synchronized void save(File file) throws Exception {
+		unpack();
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+		out.writeInt(boosted ? -1 - trees : trees);
+		if (boosted) out.writeFloat(bias);
 		for (int i = 0; i < trees; i++) {
 			out.writeInt(roots[i]);
 		}
@@ -84,12 +556,26 @@ public class RandomForestPredictor {
 			out.writeInt(nodeLeft[i]);
 			out.writeFloat(value[i]);
 		}
+		for (int i = 0; i < trees; i++) {
+			out.writeInt(ids[i]);
+		}
 		out.close();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 	}
 
 	private static RandomForestPredictor load(File file) throws Exception {
 		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
 		int trees = in.readInt();
+		if (trees == packedMagic) {
+			in.close();
+			return loadMapped(file);
+		}
+		boolean boosted = trees < 0;
+		float bias = 0;
+		if (boosted) {
+			trees = -1 - trees;
+			bias = in.readFloat();
+		}
 		int[] t = new int[trees];
 		for (int i = 0; i < trees; i++) {
 			t[i] = in.readInt();
@@ -98,9 +584,11 @@ public class RandomForestPredictor {
 		RandomForestPredictor predictor = new RandomForestPredictor(trees, nodes);
 		predictor.trees = trees;
 		predictor.free = nodes;
+		predictor.boosted = boosted;
+		predictor.bias = bias;
 		System.arraycopy(t, 0, predictor.roots, 0, trees);
 		byte[] bytes = new byte[nodes * 10];
-		in.read(bytes);
+		in.readFully(bytes);
 
 		int pos = 0;
 		for (int i = 0; i < nodes; i++) {
@@ -108,8 +596,17 @@ public class RandomForestPredictor {
 			predictor.nodeLeft[i] = (((bytes[pos++] & 0xFF) << 24) + ((bytes[pos++] & 0xFF) << 16) + ((bytes[pos++] & 0xFF) << 8) + ((bytes[pos++] & 0xFF) << 0));
 			predictor.value[i] = Float.intBitsToFloat((((bytes[pos++] & 0xFF) << 24) + ((bytes[pos++] & 0xFF) << 16) + ((bytes[pos++] & 0xFF) << 8) + ((bytes[pos++] & 0xFF) << 0)));
 		}
+		for (int i = 0; i < trees; i++) {
+			predictor.ids[i] = i;
+		}
+		try {
+			for (int i = 0; i < trees; i++) {
+				predictor.ids[i] = in.readInt();
+			}
+		} catch (EOFException e) {
+		}
 		in.close();
-		System.err.println("TREES=" + trees + " : AVG.NODES=" + nodes / trees);
+		System.err.println("TREES=" + trees + " : AVG.NODES=" + nodes / Math.max(1, trees));
 		return predictor;
 	}
 }
\ No newline at end of file
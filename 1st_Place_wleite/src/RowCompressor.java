@@ -0,0 +1,82 @@
+public class RowCompressor {
+	private static final long prime = 0x9E3779B97F4A7C15L;
+
+	static long[] hash(float[][] features, boolean[] classif, int totRows, int mantissaBits) {
+		long[] ret = new long[totRows];
+		int mask = -1 << (23 - mantissaBits);
+		for (float[] v : features) {
+			for (int i = 0; i < totRows; i++) {
+				float f = v[i];
+				int q = f == 0 ? 0 : Float.isNaN(f) ? 0x7fc00000 : Float.floatToRawIntBits(f) & mask;
+				ret[i] = (ret[i] + q) * prime;
+			}
+		}
+		return label(ret, classif, totRows);
+	}
+
+	static long[] hash(byte[][] bins, boolean[] classif, int totRows) {
+		long[] ret = new long[totRows];
+		for (byte[] v : bins) {
+			for (int i = 0; i < totRows; i++) {
+				ret[i] = (ret[i] + (v[i] & 0xFF)) * prime;
+			}
+		}
+		return label(ret, classif, totRows);
+	}
+
+	private static long[] label(long[] hash, boolean[] classif, int totRows) {
+		for (int i = 0; i < totRows; i++) {
+			long h = (hash[i] + (classif[i] ? 1 : 0)) * prime;
+			hash[i] = h ^ (h >>> 29);
+		}
+		return hash;
+	}
+
+	static int group(long[] hash, int totRows, int maxWeight, int[] target, byte[] weight) {
+		int bits = 1;
+		while ((1 << bits) < totRows * 2L && bits < 30) {
+			bits++;
+		}
+		int mask = (1 << bits) - 1;
+		long[] keys = new long[1 << bits];
+		int[] slots = new int[1 << bits];
+		int numUnique = 0;
+		for (int i = 0; i < totRows; i++) {
+			long h = hash[i];
+			int s = (int) h & mask;
+			while (slots[s] != 0 && keys[s] != h) {
+				s = (s + 1) & mask;
+			}
+			int k = slots[s] - 1;
+			if (k >= 0 && weight[k] < maxWeight) {
+				weight[k]++;
+				target[i] = -1;
+			} else {
+				k = numUnique++;
+				keys[s] = h;
+				slots[s] = k + 1;
+				weight[k] = 1;
+				target[i] = k;
+			}
+		}
+		return numUnique;
+	}
+
+	static void compact(float[] v, int[] target, int totRows) {
+		for (int i = 0; i < totRows; i++) {
+			if (target[i] >= 0) v[target[i]] = v[i];
+		}
+	}
+
+	static void compact(byte[] v, int[] target, int totRows) {
+		for (int i = 0; i < totRows; i++) {
+			if (target[i] >= 0) v[target[i]] = v[i];
+		}
+	}
+
+	static void compact(boolean[] v, int[] target, int totRows) {
+		for (int i = 0; i < totRows; i++) {
+			if (target[i] >= 0) v[target[i]] = v[i];
+		}
+	}
+}
@@ -0,0 +1,101 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+
+public class SampleStore {
+	private static final int chunk = 1 << 16;
+	final float[][] features;
+	final boolean[] classif;
+	final byte[] weight;
+	final int totRows;
+
+	SampleStore(float[][] features, boolean[] classif, byte[] weight, int totRows) {
+		this.features = features;
+		this.classif = classif;
+		this.weight = weight;
+		this.totRows = totRows;
+	}
+
+	public static void save(File file, float[][] features, boolean[] classif, byte[] weight, int totRows) throws Exception {
+		long t = System.currentTimeMillis();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		out.writeInt(features.length);
+		out.writeInt(totRows);
+		for (float[] v : features) {
+			writeFloats(out, v, totRows);
+		}
+		writeBooleans(out, classif, totRows);
+		out.writeBoolean(weight != null);
+		if (weight != null) out.write(weight, 0, totRows);
+		out.close();
+		System.err.println("\t\tSaved " + features.length + " features x " + totRows + " rows\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+	}
+
+	public static SampleStore load(File file) throws Exception {
+		long t = System.currentTimeMillis();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+		int numFeatures = in.readInt();
+		int totRows = in.readInt();
+		float[][] features = new float[numFeatures][totRows];
+		for (float[] v : features) {
+			readFloats(in, v, totRows);
+		}
+		boolean[] classif = new boolean[totRows];
+		readBooleans(in, classif, totRows);
+		byte[] weight = null;
+		if (in.readBoolean()) {
+			weight = new byte[totRows];
+			in.readFully(weight);
+		}
+		in.close();
+		System.err.println("\t\tLoaded " + numFeatures + " features x " + totRows + " rows\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		return new SampleStore(features, classif, weight, totRows);
+	}
+
+	static void writeFloats(DataOutputStream out, float[] v, int n) throws Exception {
+		ByteBuffer bb = ByteBuffer.allocate(chunk * 4);
+		for (int i = 0; i < n; i += chunk) {
+			int len = Math.min(chunk, n - i);
+			bb.clear();
+			bb.asFloatBuffer().put(v, i, len);
+			out.write(bb.array(), 0, len * 4);
+		}
+	}
+
+	static void readFloats(DataInputStream in, float[] v, int n) throws Exception {
+		ByteBuffer bb = ByteBuffer.allocate(chunk * 4);
+		for (int i = 0; i < n; i += chunk) {
+			int len = Math.min(chunk, n - i);
+			in.readFully(bb.array(), 0, len * 4);
+			bb.clear();
+			bb.asFloatBuffer().get(v, i, len);
+		}
+	}
+
+	static void writeBooleans(DataOutputStream out, boolean[] v, int n) throws Exception {
+		byte[] b = new byte[chunk];
+		for (int i = 0; i < n; i += chunk) {
+			int len = Math.min(chunk, n - i);
+			for (int j = 0; j < len; j++) {
+				b[j] = (byte) (v[i + j] ? 1 : 0);
+			}
+			out.write(b, 0, len);
+		}
+	}
+
+	static void readBooleans(DataInputStream in, boolean[] v, int n) throws Exception {
+		byte[] b = new byte[chunk];
+		for (int i = 0; i < n; i += chunk) {
+			int len = Math.min(chunk, n - i);
+			in.readFully(b, 0, len);
+			for (int j = 0; j < len; j++) {
+				v[i + j] = b[j] != 0;
+			}
+		}
+	}
+}
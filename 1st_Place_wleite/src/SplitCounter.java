@@ -0,0 +1,13 @@
+public interface SplitCounter {
+	SplitCounter VECTOR = load("VectorSplitCounter");
+
+	void count(float[] values, int[] rows, byte[] rowStat, int start, int end, float[] splitVals, int[] leftTot, int[] leftClassif);
+
+	static SplitCounter load(String name) {
+		try {
+			return (SplitCounter) Class.forName(name).getDeclaredConstructor().newInstance();
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+}
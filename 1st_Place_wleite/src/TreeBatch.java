@@ -0,0 +1,602 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TreeBatch {
+	private static final int passCacheInts = 1 << 18;
+	private static final int passMinFeatures = 4;
+	private final BinnedFeatures data;
+	private final TreeOptions options;
+	private final int[] treeIdx;
+	private final int numTrees, totRows, numFeatures, featuresSteps, minRowsPerNode, maxNodes, numThreads;
+	private final int[] active;
+	private final Random[] rnd;
+	private final byte[][] weight;
+	private final int[][] rows;
+	private final byte[][] rowStat;
+	private final int[] nodeCnt;
+	private final int[][] nodeClassif, nodeTot, nodeLeft, nodeStart, nodeEnd;
+	private final short[][] nodeFeature, nodeBin;
+	private final float[][] nodeSplitVal;
+	private final int[][] featureSplits;
+	private final double[][] featureGain;
+	private int numSlots;
+	private int[] slotTree, slotNode;
+	private short[][] slotRank;
+	private double[] slotImpurity;
+	private final int[][] hist;
+	private final int[] featureOffset;
+	private final int[][][] nodeHist;
+	private final boolean[][] nodeFull;
+	private int[][] rowSlot;
+	private int[] passHist;
+	private int[][] slotHist, slotOffset;
+	private int numTargets, passBlocks;
+	private int[] tgtTree, tgtNode;
+	private int[][] tgtHist, tgtOffset;
+	private double[][] blockGain;
+	private int[][] blockFeature, blockRank, blockBin, blockLeftTot, blockLeftClassif;
+
+	TreeBatch(BinnedFeatures data, int[] treeIdx, int minRowsPerNode, int maxNodes, int numThreads, TreeOptions options) {
+		long t = System.currentTimeMillis();
+		this.data = data;
+		this.options = options;
+		this.treeIdx = treeIdx;
+		numTrees = treeIdx.length;
+		this.minRowsPerNode = minRowsPerNode;
+		this.maxNodes = maxNodes;
+		this.numThreads = numThreads;
+		totRows = data.size();
+		numFeatures = data.numFeatures;
+		active = options.activeFeatures(numFeatures);
+		featuresSteps = active.length * 4 / 5;
+		rnd = new Random[numTrees];
+		weight = new byte[numTrees][];
+		rows = new int[numTrees][];
+		rowStat = new byte[numTrees][];
+		nodeCnt = new int[numTrees];
+		nodeClassif = new int[numTrees][maxNodes + 2];
+		nodeTot = new int[numTrees][maxNodes + 2];
+		nodeLeft = new int[numTrees][maxNodes + 2];
+		nodeStart = new int[numTrees][maxNodes + 2];
+		nodeEnd = new int[numTrees][maxNodes + 2];
+		nodeFeature = new short[numTrees][maxNodes + 2];
+		nodeBin = new short[numTrees][maxNodes + 2];
+		nodeSplitVal = new float[numTrees][maxNodes + 2];
+		featureSplits = options.importance == null ? null : new int[numTrees][numFeatures];
+		featureGain = options.importance == null ? null : new double[numTrees][numFeatures];
+		hist = new int[numThreads][BinnedFeatures.maxBins << 1];
+		featureOffset = new int[numFeatures + 1];
+		for (int f = 0; f < numFeatures; f++) {
+			featureOffset[f + 1] = featureOffset[f] + (data.numBins(f) << 1);
+		}
+		nodeHist = new int[numTrees][maxNodes + 2][];
+		nodeFull = new boolean[numTrees][maxNodes + 2];
+		for (int i = 0; i < numTrees; i++) {
+			rnd[i] = new Random(197209091220L + treeIdx[i]);
+			byte[] w = weight[i] = ClassificationTree.bootstrapWeights(rnd[i], options, totRows);
+			int tot = 0;
+			int classif = 0;
+			int numSel = 0;
+			for (int r = 0; r < totRows; r++) {
+				if (w[r] > 0) numSel++;
+			}
+			int[] rs = rows[i] = new int[numSel];
+			byte[] stat = rowStat[i] = new byte[numSel];
+			numSel = 0;
+			for (int r = 0; r < totRows; r++) {
+				if (w[r] == 0) continue;
+				stat[numSel] = (byte) ((w[r] << 1) | (data.classif[r] ? 1 : 0));
+				rs[numSel++] = r;
+				tot += w[r];
+				if (data.classif[r]) classif += w[r];
+			}
+			addNode(i, classif, tot);
+			nodeEnd[i][0] = numSel - 1;
+			nodeFull[i][0] = numSel >= ClassificationTree.histCacheMinRows;
+		}
+		int[] levelStart = new int[numTrees];
+		for (int level = 0;; level++) {
+			slots(levelStart);
+			if (numSlots == 0) break;
+			System.err.println("\t\t\t" + treeIdx[0] + "+" + numTrees + "\tlevel " + level + "\t" + numSlots + " nodes\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+			histograms(levelStart);
+			search();
+			int[] nextStart = nodeCnt.clone();
+			split(levelStart, nextStart);
+			levelStart = nextStart;
+		}
+		for (int i = 0; i < numTrees; i++) {
+			if (options.outOfBag != null) outOfBag(i);
+			if (options.importance != null) options.importance.add(featureSplits[i], featureGain[i]);
+			System.err.println("\t\t" + treeIdx[i] + "\t" + nodeCnt[i] + " nodes\t" + (System.currentTimeMillis() - t) / 1000 + "s");
+		}
+	}
+
+	static int verify(BinnedFeatures data, int numTrees, int minRowsPerNode, int maxNodes, int numThreads) {
+		int[] idx = new int[numTrees];
+		for (int i = 0; i < numTrees; i++) {
+			idx[i] = i;
+		}
+		TreeOptions options = new TreeOptions();
+		options.rowWeight = data.weight;
+		TreeBatch tb = new TreeBatch(data, idx, minRowsPerNode, maxNodes, numThreads, options);
+		int ret = 0;
+		for (int i = 0; i < numTrees; i++) {
+			int node = tb.diff(i, new ClassificationTree(data, i, minRowsPerNode, maxNodes, options));
+			if (node < 0) continue;
+			System.err.println("\t\tTree " + i + " differs from node " + node + " at maxNodes=" + maxNodes);
+			ret++;
+		}
+		return ret;
+	}
+
+	private int diff(int tree, ClassificationTree other) {
+		int n = Math.min(nodeCnt[tree], other.size());
+		for (int node = 0; node < n; node++) {
+			int l = nodeLeft[tree][node];
+			if (other.left(node) != l) return node;
+			if (l < 0 ? other.value(node) != nodeClassif[tree][node] / (float) nodeTot[tree][node]
+					: other.splitFeature(node) != nodeFeature[tree][node] || other.splitVal(node) != nodeSplitVal[tree][node]) return node;
+		}
+		return nodeCnt[tree] == other.size() ? -1 : n;
+	}
+
+	void addTo(RandomForestPredictor rf, ForestJournal journal) {
+		for (int i = 0; i < numTrees; i++) {
+			int n = nodeCnt[i];
+			float[] val = new float[n];
+			for (int node = 0; node < n; node++) {
+				val[node] = nodeLeft[i][node] < 0 ? nodeClassif[i][node] / (float) nodeTot[i][node] : nodeSplitVal[i][node];
+			}
+			rf.add(treeIdx[i], n, nodeLeft[i], nodeFeature[i], val);
+			journal.append(treeIdx[i], n, nodeLeft[i], nodeFeature[i], val);
+		}
+	}
+
+	private void addNode(int tree, int classif, int tot) {
+		int node = nodeCnt[tree]++;
+		nodeClassif[tree][node] = classif;
+		nodeTot[tree][node] = tot;
+		nodeLeft[tree][node] = -1;
+		nodeFeature[tree][node] = -1;
+	}
+
+	private void slots(int[] levelStart) {
+		int n = 0;
+		for (int i = 0; i < numTrees; i++) {
+			n += nodeCnt[i] - levelStart[i];
+		}
+		slotTree = new int[n];
+		slotNode = new int[n];
+		slotRank = new short[n][];
+		slotImpurity = new double[n];
+		numSlots = 0;
+		for (int i = 0; i < numTrees; i++) {
+			if (nodeCnt[i] >= maxNodes) continue;
+			for (int node = levelStart[i]; node < nodeCnt[i]; node++) {
+				int classif = nodeClassif[i][node];
+				int tot = nodeTot[i][node];
+				if (classif == 0 || classif == tot || tot < minRowsPerNode * 2) continue;
+				int s = numSlots++;
+				slotTree[s] = i;
+				slotNode[s] = node;
+				slotImpurity[s] = options.impurity.impurity(classif, tot);
+				short[] rank = slotRank[s] = new short[numFeatures];
+				for (int j = 0; j < featuresSteps; j++) {
+					int f = active[rnd[i].nextInt(active.length)];
+					if (rank[f] == 0) rank[f] = (short) (j + 1);
+				}
+			}
+		}
+	}
+
+	private void histograms(int[] levelStart) {
+		int[][] slotIdx = new int[numTrees][];
+		for (int i = 0; i < numTrees; i++) {
+			slotIdx[i] = new int[nodeCnt[i] - levelStart[i]];
+			Arrays.fill(slotIdx[i], -1);
+		}
+		for (int s = 0; s < numSlots; s++) {
+			slotIdx[slotTree[s]][slotNode[s] - levelStart[slotTree[s]]] = s;
+		}
+		tgtTree = new int[numSlots + numTrees];
+		tgtNode = new int[tgtTree.length];
+		tgtHist = new int[tgtTree.length][];
+		tgtOffset = new int[tgtTree.length][];
+		numTargets = 0;
+		for (int i = 0; i < numTrees; i++) {
+			for (int node = levelStart[i]; node < nodeCnt[i]; node++) {
+				if (!nodeFull[i][node]) continue;
+				nodeFull[i][node] = false;
+				int sib = node == 0 ? -1 : (node & 1) != 0 ? node + 1 : node - 1;
+				if (slotIdx[i][node - levelStart[i]] < 0 && (sib < 0 || slotIdx[i][sib - levelStart[i]] < 0)) {
+					if (sib >= 0) nodeHist[i][sib] = null;
+					continue;
+				}
+				int t = numTargets++;
+				tgtTree[t] = i;
+				tgtNode[t] = node;
+				tgtHist[t] = nodeHist[i][node] = new int[featureOffset[numFeatures]];
+				tgtOffset[t] = featureOffset;
+			}
+		}
+		int numFull = numTargets;
+		long partialInts = 0;
+		for (int s = 0; s < numSlots; s++) {
+			if (nodeHist[slotTree[s]][slotNode[s]] != null) continue;
+			short[] rank = slotRank[s];
+			for (int f = 0; f < numFeatures; f++) {
+				if (rank[f] != 0) partialInts += data.numBins(f) << 1;
+			}
+		}
+		long perFeature = (partialInts + (long) numFull * featureOffset[numFeatures] + numFeatures - 1) / numFeatures;
+		long blockSize = perFeature == 0 ? 0 : Math.min(numFeatures, passCacheInts / perFeature);
+		if (blockSize >= Math.min(numFeatures, passMinFeatures)) {
+			passBlocks = Math.max(Math.min(numFeatures, numThreads), (int) ((numFeatures + blockSize - 1) / blockSize));
+			if (passHist == null || passHist.length < partialInts) passHist = new int[(int) partialInts];
+			Arrays.fill(passHist, 0, (int) partialInts, 0);
+			int pos = 0;
+			for (int s = 0; s < numSlots; s++) {
+				if (nodeHist[slotTree[s]][slotNode[s]] != null) continue;
+				int t = numTargets++;
+				tgtTree[t] = slotTree[s];
+				tgtNode[t] = slotNode[s];
+				tgtHist[t] = passHist;
+				int[] off = tgtOffset[t] = new int[numFeatures];
+				short[] rank = slotRank[s];
+				for (int f = 0; f < numFeatures; f++) {
+					off[f] = -1;
+					if (rank[f] == 0) continue;
+					off[f] = pos;
+					pos += data.numBins(f) << 1;
+				}
+			}
+			rowPass();
+		} else if (numFull > 0) {
+			gatherFull(numFull);
+		}
+		for (int t = 0; t < numFull; t++) {
+			int i = tgtTree[t];
+			int node = tgtNode[t];
+			if (node == 0) continue;
+			int[] p = nodeHist[i][(node & 1) != 0 ? node + 1 : node - 1];
+			int[] h = tgtHist[t];
+			for (int k = 0; k < p.length; k++) {
+				p[k] -= h[k];
+			}
+		}
+		slotHist = new int[numSlots][];
+		slotOffset = new int[numSlots][];
+		for (int s = 0; s < numSlots; s++) {
+			slotHist[s] = nodeHist[slotTree[s]][slotNode[s]];
+			if (slotHist[s] != null) slotOffset[s] = featureOffset;
+		}
+		for (int t = numFull; t < numTargets; t++) {
+			int s = slotIdx[tgtTree[t]][tgtNode[t] - levelStart[tgtTree[t]]];
+			slotHist[s] = tgtHist[t];
+			slotOffset[s] = tgtOffset[t];
+		}
+	}
+
+	private void rowPass() {
+		if (rowSlot == null) rowSlot = new int[numTrees][totRows];
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = new Thread[Math.min(numThreads, numTrees)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					int tree;
+					while ((tree = next.getAndIncrement()) < numTrees) {
+						int[] map = rowSlot[tree];
+						int[] rs = rows[tree];
+						Arrays.fill(map, -1);
+						for (int t = 0; t < numTargets; t++) {
+							if (tgtTree[t] != tree) continue;
+							int node = tgtNode[t];
+							for (int p = nodeStart[tree][node]; p <= nodeEnd[tree][node]; p++) {
+								map[rs[p]] = t;
+							}
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		join(threads);
+		final int numBlocks = passBlocks;
+		final boolean[] label = data.classif;
+		next.set(0);
+		threads = new Thread[Math.min(numThreads, numBlocks)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					int block;
+					while ((block = next.getAndIncrement()) < numBlocks) {
+						int f0 = (int) ((long) numFeatures * block / numBlocks);
+						int f1 = (int) ((long) numFeatures * (block + 1) / numBlocks);
+						for (int r = 0; r < totRows; r++) {
+							for (int tree = 0; tree < numTrees; tree++) {
+								int t = rowSlot[tree][r];
+								if (t < 0) continue;
+								int w = weight[tree][r];
+								int c = label[r] ? w : 0;
+								int[] h = tgtHist[t];
+								int[] off = tgtOffset[t];
+								for (int f = f0; f < f1; f++) {
+									int o = off[f];
+									if (o < 0) continue;
+									int idx = o + ((data.bins[f][r] & 0xFF) << 1);
+									h[idx] += w;
+									h[idx + 1] += c;
+								}
+							}
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		join(threads);
+	}
+
+	private void gatherFull(final int numFull) {
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = new Thread[Math.min(numThreads, numFull * numFeatures)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					int task;
+					while ((task = next.getAndIncrement()) < numFull * numFeatures) {
+						int t = task / numFeatures;
+						int f = task % numFeatures;
+						int tree = tgtTree[t];
+						int node = tgtNode[t];
+						int[] h = tgtHist[t];
+						int o = featureOffset[f];
+						int[] rs = rows[tree];
+						byte[] stat = rowStat[tree];
+						byte[] col = data.bins[f];
+						for (int p = nodeStart[tree][node]; p <= nodeEnd[tree][node]; p++) {
+							int st = stat[p];
+							int idx = o + ((col[rs[p]] & 0xFF) << 1);
+							h[idx] += st >>> 1;
+							h[idx + 1] += (st & 1) * (st >>> 1);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		join(threads);
+	}
+
+	private void search() {
+		long totSlotRows = 0;
+		int numGather = 0;
+		for (int s = 0; s < numSlots; s++) {
+			if (slotHist[s] != null) continue;
+			totSlotRows += nodeEnd[slotTree[s]][slotNode[s]] - nodeStart[slotTree[s]][slotNode[s]] + 1;
+			numGather++;
+		}
+		long target = Math.max(1, totSlotRows / (numThreads * 8));
+		final int[] chunkStart = new int[numSlots + 1];
+		int chunks = 0;
+		long acc = 0;
+		for (int s = 0; s < numSlots; s++) {
+			if (acc == 0) chunkStart[chunks++] = s;
+			if (slotHist[s] == null) acc += nodeEnd[slotTree[s]][slotNode[s]] - nodeStart[slotTree[s]][slotNode[s]] + 1;
+			if (acc >= target) acc = 0;
+		}
+		chunkStart[chunks] = numSlots;
+		final int numChunks = chunks;
+		final int numBlocks = numGather == 0 ? 1 : Math.max(1, Math.min(numFeatures, numThreads * 4 / numChunks));
+		final int blockSize = (numFeatures + numBlocks - 1) / numBlocks;
+		blockGain = new double[numBlocks][numSlots];
+		blockFeature = new int[numBlocks][numSlots];
+		blockRank = new int[numBlocks][numSlots];
+		blockBin = new int[numBlocks][numSlots];
+		blockLeftTot = new int[numBlocks][numSlots];
+		blockLeftClassif = new int[numBlocks][numSlots];
+		final int numTasks = numGather == 0 ? numChunks : numBlocks * numChunks;
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = new Thread[Math.min(numThreads, numTasks)];
+		for (int i = 0; i < threads.length; i++) {
+			final int[] h = hist[i];
+			threads[i] = new Thread() {
+				public void run() {
+					int task;
+					while ((task = next.getAndIncrement()) < numTasks) {
+						int block = task / numChunks;
+						int chunk = task % numChunks;
+						int f0 = block * blockSize;
+						searchBlock(block, f0, Math.min(numFeatures, f0 + blockSize), chunkStart[chunk], chunkStart[chunk + 1], h);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		join(threads);
+	}
+
+	private void searchBlock(int block, int f0, int f1, int s0, int s1, int[] hist) {
+		for (int s = s0; s < s1; s++) {
+			int tree = slotTree[s];
+			int node = slotNode[s];
+			short[] rank = slotRank[s];
+			if (slotHist[s] != null) {
+				if (block != 0) continue;
+				int[] off = slotOffset[s];
+				for (int f = 0; f < numFeatures; f++) {
+					if (rank[f] != 0) evalHist(block, s, f, slotHist[s], off[f]);
+				}
+				continue;
+			}
+			int[] rs = rows[tree];
+			byte[] stat = rowStat[tree];
+			int start = nodeStart[tree][node];
+			int end = nodeEnd[tree][node];
+			for (int f = f0; f < f1; f++) {
+				if (rank[f] == 0) continue;
+				Arrays.fill(hist, 0, data.numBins(f) << 1, 0);
+				byte[] col = data.bins[f];
+				for (int p = start; p <= end; p++) {
+					int st = stat[p];
+					int idx = (col[rs[p]] & 0xFF) << 1;
+					hist[idx] += st >>> 1;
+					hist[idx + 1] += (st & 1) * (st >>> 1);
+				}
+				evalHist(block, s, f, hist, 0);
+			}
+		}
+	}
+
+	private void evalHist(int block, int s, int f, int[] hist, int off) {
+		int tree = slotTree[s];
+		int node = slotNode[s];
+		int numRows = nodeTot[tree][node];
+		int classif = nodeClassif[tree][node];
+		double parentImpurity = slotImpurity[s];
+		int rank = slotRank[s][f];
+		double[] bestGain = blockGain[block];
+		int[] bestRank = blockRank[block];
+		int numBins = data.numBins(f) - 1;
+		double featureGain = 0;
+		int leftTot = 0;
+		int leftClassif = 0;
+		for (int bin = 1; bin < numBins; bin++) {
+			leftTot += hist[off + ((bin - 1) << 1)];
+			leftClassif += hist[off + ((bin - 1) << 1) + 1];
+			if (leftTot < minRowsPerNode) continue;
+			if (numRows - leftTot < minRowsPerNode) break;
+			double splitGain = parentImpurity - impurity(leftClassif, leftTot, classif - leftClassif, numRows - leftTot);
+			if (splitGain > featureGain) featureGain = splitGain;
+			else continue;
+			if (splitGain > bestGain[s] || (splitGain == bestGain[s] && rank < bestRank[s])) {
+				bestGain[s] = splitGain;
+				bestRank[s] = rank;
+				blockFeature[block][s] = f;
+				blockBin[block][s] = bin;
+				blockLeftTot[block][s] = leftTot;
+				blockLeftClassif[block][s] = leftClassif;
+			}
+		}
+	}
+
+	private void split(final int[] levelStart, final int[] levelEnd) {
+		for (int s = 0; s < numSlots; s++) {
+			int tree = slotTree[s];
+			int node = slotNode[s];
+			if (nodeCnt[tree] >= maxNodes) continue;
+			int best = -1;
+			for (int block = 0; block < blockGain.length; block++) {
+				if (blockGain[block][s] <= 0) continue;
+				if (best < 0 || blockGain[block][s] > blockGain[best][s] || (blockGain[block][s] == blockGain[best][s] && blockRank[block][s] < blockRank[best][s])) best = block;
+			}
+			if (best < 0) continue;
+			int f = blockFeature[best][s];
+			int bin = blockBin[best][s];
+			int tot = nodeTot[tree][node];
+			int classif = nodeClassif[tree][node];
+			nodeLeft[tree][node] = nodeCnt[tree];
+			nodeFeature[tree][node] = (short) f;
+			nodeBin[tree][node] = (short) bin;
+			nodeSplitVal[tree][node] = data.splitVal(f, bin);
+			addNode(tree, blockLeftClassif[best][s], blockLeftTot[best][s]);
+			addNode(tree, classif - blockLeftClassif[best][s], tot - blockLeftTot[best][s]);
+			if (featureSplits != null) {
+				featureSplits[tree][f]++;
+				featureGain[tree][f] += blockGain[best][s] * tot;
+			}
+		}
+		final AtomicInteger next = new AtomicInteger();
+		Thread[] threads = new Thread[Math.min(numThreads, numTrees)];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					int tree;
+					while ((tree = next.getAndIncrement()) < numTrees) {
+						int[] rs = rows[tree];
+						byte[] stat = rowStat[tree];
+						for (int node = levelStart[tree]; node < levelEnd[tree]; node++) {
+							int l = nodeLeft[tree][node];
+							if (l < 0) continue;
+							byte[] col = data.bins[nodeFeature[tree][node]];
+							int bin = nodeBin[tree][node];
+							int lo = nodeStart[tree][node];
+							int hi = nodeEnd[tree][node];
+							while (lo <= hi) {
+								if ((col[rs[lo]] & 0xFF) < bin) lo++;
+								else {
+									int tmp = rs[lo];
+									rs[lo] = rs[hi];
+									rs[hi] = tmp;
+									byte st = stat[lo];
+									stat[lo] = stat[hi];
+									stat[hi--] = st;
+								}
+							}
+							nodeStart[tree][l] = nodeStart[tree][node];
+							nodeEnd[tree][l] = lo - 1;
+							nodeStart[tree][l + 1] = lo;
+							nodeEnd[tree][l + 1] = nodeEnd[tree][node];
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		join(threads);
+		for (int tree = 0; tree < numTrees; tree++) {
+			for (int node = levelStart[tree]; node < levelEnd[tree]; node++) {
+				int[] p = nodeHist[tree][node];
+				if (p == null) continue;
+				nodeHist[tree][node] = null;
+				int small = nodeLeft[tree][node];
+				if (small < 0) continue;
+				int large = small + 1;
+				if (nodeEnd[tree][small] - nodeStart[tree][small] > nodeEnd[tree][large] - nodeStart[tree][large]) {
+					small = large;
+					large = small - 1;
+				}
+				if (nodeEnd[tree][large] - nodeStart[tree][large] + 1 < ClassificationTree.histCacheMinRows) continue;
+				nodeFull[tree][small] = true;
+				nodeHist[tree][large] = p;
+			}
+		}
+	}
+
+	private void outOfBag(int tree) {
+		long[] inBag = new long[(totRows + 63) >>> 6];
+		byte[] w = weight[tree];
+		int numOut = 0;
+		for (int row = 0; row < totRows; row++) {
+			if (w[row] > 0) inBag[row >>> 6] |= 1L << row;
+			else numOut++;
+		}
+		float[] values = new float[numOut];
+		int k = 0;
+		for (int row = 0; row < totRows; row++) {
+			if (w[row] > 0) continue;
+			int node = 0;
+			while (nodeLeft[tree][node] >= 0) {
+				int l = nodeLeft[tree][node];
+				node = (data.bins[nodeFeature[tree][node]][row] & 0xFF) < nodeBin[tree][node] ? l : l + 1;
+			}
+			values[k++] = nodeClassif[tree][node] / (float) nodeTot[tree][node];
+		}
+		options.outOfBag.add(inBag, values);
+	}
+
+	private double impurity(int cnt1, int tot1, int cnt2, int tot2) {
+		return (options.impurity.impurity(cnt1, tot1) * tot1 + options.impurity.impurity(cnt2, tot2) * tot2) / (tot1 + tot2);
+	}
+
+	private static void join(Thread[] threads) {
+		try {
+			for (Thread t : threads) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+}
@@ -0,0 +1,346 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class TreeCompiler {
+	private static final int maxChunkNodes = 1 << 15;
+	private static final int maxChunkTrees = 1024;
+	private static final int maxMethodNodes = 300;
+	private static final String treeDesc = "([F)D";
+	private static int classCnt;
+	private final RandomForestPredictor rf;
+	private final String name;
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final HashMap<Object, Integer> entries = new HashMap<Object, Integer>();
+	private final List<byte[]> methods = new ArrayList<byte[]>();
+	private final List<Integer> pending = new ArrayList<Integer>();
+	private final int base;
+	private final int[] mark, weight;
+	private final String[] external;
+	private int poolCnt = 1;
+	private byte[] code = new byte[1 << 13];
+	private int len;
+
+	public interface Chunk {
+		double add(double sum, float[] features);
+	}
+
+	static class Program {
+		final Chunk[] chunk;
+		final int[] end;
+
+		Program(Chunk[] chunk, int[] end) {
+			this.chunk = chunk;
+			this.end = end;
+		}
+	}
+
+	private static class Loader extends ClassLoader {
+		Loader() {
+			super(TreeCompiler.class.getClassLoader());
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	static Program compile(RandomForestPredictor rf) throws Exception {
+		long t = System.currentTimeMillis();
+		int trees = rf.size();
+		Chunk[] chunk = new Chunk[trees];
+		int[] end = new int[trees];
+		Loader loader = new Loader();
+		int split = 0;
+		int start = 0;
+		while (start < trees) {
+			int e = start;
+			int nodes = 0;
+			while (e < trees && e - start < maxChunkTrees && nodes + rf.treeSize(e) <= maxChunkNodes) {
+				nodes += rf.treeSize(e++);
+			}
+			if (e == start) {
+				chunk[start] = compileSplit(loader, rf, start);
+				end[start] = ++e;
+				split++;
+			} else {
+				int[] roots = new int[e - start];
+				for (int i = start; i < e; i++) {
+					roots[i - start] = rf.root(i);
+				}
+				String name = className();
+				TreeCompiler tc = new TreeCompiler(rf, name, rf.root(start), nodes, null);
+				chunk[start] = (Chunk) loader.define(name, tc.build(roots)).getConstructor().newInstance();
+				end[start] = e;
+			}
+			start = e;
+		}
+		System.err.println("\t\tCompiled " + trees + " trees, " + split + " split across classes\t" + (System.currentTimeMillis() - t) + "ms");
+		return new Program(chunk, end);
+	}
+
+	private static Chunk compileSplit(Loader loader, RandomForestPredictor rf, int tree) throws Exception {
+		int rt = rf.root(tree);
+		int n = rf.treeSize(tree);
+		int[] classMark = new int[n];
+		partition(rf, rt, classMark, new int[n], null, maxChunkNodes);
+		classMark[0] = 1;
+		String[] names = new String[n];
+		for (int i = 0; i < n; i++) {
+			if (classMark[i] != 0) names[i] = className();
+		}
+		Chunk ret = null;
+		for (int i = n - 1; i >= 0; i--) {
+			if (names[i] == null) continue;
+			String[] external = names.clone();
+			external[i] = null;
+			TreeCompiler tc = new TreeCompiler(rf, names[i], rt, n, external);
+			Class<?> c = loader.define(names[i], tc.build(new int[] {rt + i}));
+			if (i == 0) ret = (Chunk) c.getConstructor().newInstance();
+		}
+		return ret;
+	}
+
+	private static String className() {
+		synchronized (TreeCompiler.class) {
+			return "CompiledTrees" + classCnt++;
+		}
+	}
+
+	private TreeCompiler(RandomForestPredictor rf, String name, int base, int nodes, String[] external) {
+		this.rf = rf;
+		this.name = name;
+		this.base = base;
+		this.external = external;
+		mark = new int[nodes];
+		weight = new int[nodes];
+	}
+
+	private byte[] build(int[] roots) throws Exception {
+		int thisClass = classRef(name);
+		int superClass = classRef("java/lang/Object");
+		int chunkClass = classRef("TreeCompiler$Chunk");
+		int codeName = utf8("Code");
+		len = 0;
+		u1(0x2a);
+		u1(0xb7);
+		u2(methodRef(superClass, "<init>", "()V"));
+		u1(0xb1);
+		method(0x0001, "<init>", "()V", 1, 1);
+		partition(rf, base, mark, weight, external, maxMethodNodes);
+		int[] rootRef = new int[roots.length];
+		for (int t = 0; t < roots.length; t++) {
+			rootRef[t] = treeMethod(roots[t]);
+		}
+		for (int i = 0; i < pending.size(); i++) {
+			compileMethod(pending.get(i));
+		}
+		len = 0;
+		u1(0x27);
+		for (int ref : rootRef) {
+			u1(0x2d);
+			u1(0xb8);
+			u2(ref);
+			u1(0x63);
+		}
+		u1(0xaf);
+		method(0x0001, "add", "(D[F)D", 4, 4);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(poolBytes.size() + (1 << 16));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xcafebabe);
+		out.writeShort(0);
+		out.writeShort(49);
+		out.writeShort(poolCnt);
+		poolBytes.writeTo(out);
+		out.writeShort(0x0031);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(1);
+		out.writeShort(chunkClass);
+		out.writeShort(0);
+		out.writeShort(methods.size());
+		for (byte[] m : methods) {
+			out.writeShort(m[0] << 8 | m[1] & 0xff);
+			out.writeShort(m[2] << 8 | m[3] & 0xff);
+			out.writeShort(m[4] << 8 | m[5] & 0xff);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(m.length - 6 + 8);
+			out.write(m, 6, 4);
+			out.writeInt(m.length - 10);
+			out.write(m, 10, m.length - 10);
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+		out.writeShort(0);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private int treeMethod(int pos) throws Exception {
+		pending.add(pos);
+		return methodRef(classRef(name), "n" + pos, treeDesc);
+	}
+
+	private static void partition(RandomForestPredictor rf, int base, int[] mark, int[] weight, String[] external, int limit) {
+		for (int i = mark.length - 1; i >= 0; i--) {
+			int l = rf.left(base + i) - base;
+			if (l < 0 || (external != null && external[i] != null)) {
+				weight[i] = 1;
+				continue;
+			}
+			int w = 1 + weight[l] + weight[l + 1];
+			while (w > limit) {
+				int c = mark[l] != 0 || (mark[l + 1] == 0 && weight[l + 1] > weight[l]) ? l + 1 : l;
+				mark[c] = 1;
+				w -= weight[c];
+			}
+			weight[i] = w;
+		}
+	}
+
+	private void compileMethod(int root) throws Exception {
+		len = 0;
+		emit(root, true);
+		method(0x0008, "n" + root, treeDesc, 2, 1);
+	}
+
+	private void emit(int pos, boolean root) throws Exception {
+		if (!root && external != null && external[pos - base] != null) {
+			u1(0x2a);
+			u1(0xb8);
+			u2(methodRef(classRef(external[pos - base]), "n" + pos, treeDesc));
+			u1(0xaf);
+			return;
+		}
+		int l = rf.left(pos);
+		if (l < 0) {
+			u1(0x14);
+			u2(constant(Double.valueOf(rf.value(pos))));
+			u1(0xaf);
+			return;
+		}
+		if (!root && mark[pos - base] != 0) {
+			u1(0x2a);
+			u1(0xb8);
+			u2(treeMethod(pos));
+			u1(0xaf);
+			return;
+		}
+		int sf = rf.feature(pos);
+		u1(0x2a);
+		if (sf <= 5) {
+			u1(0x03 + sf);
+		} else if (sf <= 127) {
+			u1(0x10);
+			u1(sf);
+		} else {
+			u1(0x11);
+			u2(sf);
+		}
+		u1(0x30);
+		int idx = constant(Float.valueOf(rf.value(pos)));
+		if (idx < 256) {
+			u1(0x12);
+			u1(idx);
+		} else {
+			u1(0x13);
+			u2(idx);
+		}
+		u1(0x96);
+		int branch = len;
+		u1(0x9c);
+		u2(0);
+		emit(l, false);
+		int off = len - branch;
+		code[branch + 1] = (byte) (off >> 8);
+		code[branch + 2] = (byte) off;
+		emit(l + 1, false);
+	}
+
+	private void method(int access, String methodName, String desc, int maxStack, int maxLocals) throws Exception {
+		if (len > 8000) throw new IllegalStateException("Method too large " + methodName + " " + len);
+		byte[] m = new byte[10 + len];
+		int[] head = {access, utf8(methodName), utf8(desc), maxStack, maxLocals};
+		for (int i = 0; i < head.length; i++) {
+			m[2 * i] = (byte) (head[i] >> 8);
+			m[2 * i + 1] = (byte) head[i];
+		}
+		System.arraycopy(code, 0, m, 10, len);
+		methods.add(m);
+	}
+
+	private void u1(int v) {
+		if (len + 3 > code.length) code = Arrays.copyOf(code, code.length * 2);
+		code[len++] = (byte) v;
+	}
+
+	private void u2(int v) {
+		u1(v >> 8);
+		u1(v);
+	}
+
+	private int entry(Object key, int slots) {
+		Integer idx = entries.get(key);
+		if (idx != null) return idx;
+		if (poolCnt + slots > 0xffff) throw new IllegalStateException("Constant pool overflow");
+		entries.put(key, poolCnt);
+		poolCnt += slots;
+		return -1;
+	}
+
+	private int utf8(String s) throws Exception {
+		int idx = entry(s, 1);
+		if (idx >= 0) return idx;
+		pool.writeByte(1);
+		pool.writeUTF(s);
+		return poolCnt - 1;
+	}
+
+	private int classRef(String s) throws Exception {
+		String key = "class:" + s;
+		Integer idx = entries.get(key);
+		if (idx != null) return idx;
+		int nameIdx = utf8(s);
+		entry(key, 1);
+		pool.writeByte(7);
+		pool.writeShort(nameIdx);
+		return poolCnt - 1;
+	}
+
+	private int methodRef(int classIdx, String methodName, String desc) throws Exception {
+		String key = "method:" + classIdx + ":" + methodName + desc;
+		Integer idx = entries.get(key);
+		if (idx != null) return idx;
+		int nameIdx = utf8(methodName);
+		int descIdx = utf8(desc);
+		entry("nat:" + key, 1);
+		pool.writeByte(12);
+		pool.writeShort(nameIdx);
+		pool.writeShort(descIdx);
+		int nat = poolCnt - 1;
+		entry(key, 1);
+		pool.writeByte(10);
+		pool.writeShort(classIdx);
+		pool.writeShort(nat);
+		return poolCnt - 1;
+	}
+
+	private int constant(Object v) throws Exception {
+		boolean wide = v instanceof Double;
+		int idx = entry(v, wide ? 2 : 1);
+		if (idx >= 0) return idx;
+		if (wide) {
+			pool.writeByte(6);
+			pool.writeLong(Double.doubleToRawLongBits((Double) v));
+			return poolCnt - 2;
+		}
+		pool.writeByte(4);
+		pool.writeInt(Float.floatToRawIntBits((Float) v));
+		return poolCnt - 1;
+	}
+}
@@ -0,0 +1,42 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+public class TreeOptions {
+	public boolean parallelSplitSearch = false;
+	public int parallelMinRows = 1 << 16;
+	public int splitSampleRows = 0;
+	public boolean orderedRows = false;
+	public boolean bestFirst = false;
+	public int levelBatch = 0;
+	public long heapBudget = 0;
+	public boolean poissonBootstrap = false;
+	public double sampleFraction = 1;
+	public Impurity impurity = Impurity.ENTROPY;
+	public OutOfBag outOfBag;
+	public FeatureImportance importance;
+	public boolean[] featureMask;
+	public SplitCounter splitCounter;
+	public byte[] rowWeight;
+	ForkJoinPool pool;
+	private int[] rowWeightEnd;
+
+	int[] activeFeatures(int numFeatures) {
+		int[] ret = new int[numFeatures];
+		int cnt = 0;
+		for (int f = 0; f < numFeatures; f++) {
+			if (featureMask == null || featureMask[f]) ret[cnt++] = f;
+		}
+		return Arrays.copyOf(ret, cnt);
+	}
+
+	synchronized int[] rowWeightEnd(int totRows) {
+		if (rowWeightEnd == null) {
+			rowWeightEnd = new int[totRows];
+			int sum = 0;
+			for (int i = 0; i < totRows; i++) {
+				rowWeightEnd[i] = sum += rowWeight[i];
+			}
+		}
+		return rowWeightEnd;
+	}
+}
@@ -16,6 +16,50 @@ public class TumorFeatureExtractor {
 	private final float darkPct1, darkPct2, slicePct;
 	private final SliceImage image;
 	private final Slice slice;
+	private boolean[] usedGroups;
+	private long[] groupNanos;
+	private int calls, profiled;
+	private static final int rectGroup = 0, rawGroup = 1, histGroup = 2, positionGroup = 3, darkGroup = 4, modeGroup = 5;
+	private static final int[][] rectScales = { { 1, 2, 3, 5, 7, 9, 12, 16 }, { 1, 2, 4, 6, 8, 11, 14 }, { 1, 2, 4, 6, 8, 11, 14 }, { 1, 3, 5, 7, 10, 15 }, { 1, 3, 5, 7, 10, 15 }, { 1, 2, 4, 8, 13, 17 } };
+	private static final int[] histScales = { 2, 4, 7, 11 };
+	public static final int numGroups;
+	private static final int[] groupKind, groupChannel, groupScale, groupStart;
+	static final int[] featureGroup = new int[numFeatures];
+
+	static {
+		int n = 0;
+		for (int[] r : rectScales) {
+			n += r.length;
+		}
+		numGroups = n + histScales.length + 4;
+		groupKind = new int[numGroups];
+		groupChannel = new int[numGroups];
+		groupScale = new int[numGroups];
+		groupStart = new int[numGroups + 1];
+		int g = 0;
+		for (int ch = 0; ch < rectScales.length; ch++) {
+			for (int i : rectScales[ch]) {
+				addGroup(g++, rectGroup, ch, i, 3);
+			}
+		}
+		addGroup(g++, rawGroup, 0, 0, 5);
+		for (int i : histScales) {
+			addGroup(g++, histGroup, 0, i, numHistBins);
+		}
+		addGroup(g++, positionGroup, 0, 0, 10);
+		addGroup(g++, darkGroup, 0, 0, 20);
+		addGroup(g++, modeGroup, 0, 0, 4);
+	}
+
+	private static void addGroup(int g, int kind, int channel, int scale, int size) {
+		groupKind[g] = kind;
+		groupChannel[g] = channel;
+		groupScale[g] = scale;
+		groupStart[g + 1] = groupStart[g] + size;
+		for (int f = groupStart[g]; f < groupStart[g + 1]; f++) {
+			featureGroup[f] = g;
+		}
+	}
 
 	public TumorFeatureExtractor(SliceImage imagePrev, SliceImage image, SliceImage imageNext, Slice slice, int usedContrast, double slicePct) {
 		this.slice = slice;
@@ -481,92 +525,110 @@ public class TumorFeatureExtractor {
 
 	public float[] getFeatures(int sx, int sy) {
 		float[] ret = new float[numFeatures];
-		int k = 0;
-		int ch = 0;
-		for (int i : new int[] { 1, 2, 3, 5, 7, 9, 12, 16 }) {
-			int rx = sx - i;
-			int ry = sy - i;
-			int rs = i * 2 + 1;
-			System.arraycopy(rectStatFeatures(sums0[ch], sums1[ch], sums2[ch], rx, ry, rs, rs), 0, ret, k, 3);
-			k += 3;
-		}
-		for (ch = 1; ch <= 2; ch++) {
-			for (int i : new int[] { 1, 2, 4, 6, 8, 11, 14 }) {
-				int rx = sx - i;
-				int ry = sy - i;
-				int rs = i * 2 + 1;
-				System.arraycopy(rectStatFeatures(sums0[ch], sums1[ch], sums2[ch], rx, ry, rs, rs), 0, ret, k, 3);
-				k += 3;
+		if (groupNanos != null && (++calls & 63) == 0) {
+			for (int g = 0; g < numGroups; g++) {
+				long t = System.nanoTime();
+				groupFeatures(g, sx, sy, ret);
+				groupNanos[g] += System.nanoTime() - t;
 			}
-		}
-		for (ch = 3; ch <= 4; ch++) {
-			for (int i : new int[] { 1, 3, 5, 7, 10, 15 }) {
-				int rx = sx - i;
-				int ry = sy - i;
-				int rs = i * 2 + 1;
-				System.arraycopy(rectStatFeatures(sums0[ch], sums1[ch], sums2[ch], rx, ry, rs, rs), 0, ret, k, 3);
-				k += 3;
+			profiled++;
+		} else {
+			for (int g = 0; g < numGroups; g++) {
+				if (usedGroups == null || usedGroups[g]) groupFeatures(g, sx, sy, ret);
 			}
 		}
-		ch = 5;
-		for (int i : new int[] { 1, 2, 4, 8, 13, 17 }) {
-			int rx = sx - i;
-			int ry = sy - i;
+		return ret;
+	}
+
+	private void groupFeatures(int g, int sx, int sy, float[] ret) {
+		int k = groupStart[g];
+		int i = groupScale[g];
+		int ch = groupChannel[g];
+		int kind = groupKind[g];
+		if (kind == rectGroup) {
+			int rs = i * 2 + 1;
+			System.arraycopy(rectStatFeatures(sums0[ch], sums1[ch], sums2[ch], sx - i, sy - i, rs, rs), 0, ret, k, 3);
+		} else if (kind == rawGroup) {
+			for (ch = 0; ch < 5; ch++) {
+				ret[k++] = rawValues[ch][sy][sx];
+			}
+		} else if (kind == histGroup) {
 			int rs = i * 2 + 1;
-			System.arraycopy(rectStatFeatures(sums0[ch], sums1[ch], sums2[ch], rx, ry, rs, rs), 0, ret, k, 3);
-			k += 3;
+			System.arraycopy(rectHist(sx - i, sy - i, rs, rs), 0, ret, k, numHistBins);
+		} else if (kind == positionGroup) {
+			float dx = ret[k++] = Util.pixelToX(sx, slice) - Util.pixelToY(image.getXCenter(sy), slice);
+			float dy = ret[k++] = Util.pixelToY(sy, slice) - Util.pixelToY(image.yCenter, slice);
+			ret[k++] = dx * dx + dy * dy;
+			ret[k++] = Math.abs(dx);
+			ret[k++] = dist[sy * width + sx];
+			ret[k++] = sliceZ;
+			ret[k++] = darkPct1;
+			ret[k++] = darkPct2;
+			ret[k++] = usedContrast;
+			ret[k++] = slicePct;
+		} else if (kind == darkGroup) {
+			int pos = sy * width + sx;
+			ret[k++] = topDarkDist1[pos];
+			ret[k++] = topDarkDist2[pos];
+			ret[k++] = topDarkPct1[pos];
+			ret[k++] = topDarkPct2[pos];
+			ret[k++] = bottomDarkDist1[pos];
+			ret[k++] = bottomDarkDist2[pos];
+			ret[k++] = bottomDarkPct1[pos];
+			ret[k++] = bottomDarkPct2[pos];
+			ret[k++] = leftDarkDist1[pos];
+			ret[k++] = leftDarkDist2[pos];
+			ret[k++] = leftDarkPct1[pos];
+			ret[k++] = leftDarkPct2[pos];
+			ret[k++] = rightDarkDist1[pos];
+			ret[k++] = rightDarkDist2[pos];
+			ret[k++] = rightDarkPct1[pos];
+			ret[k++] = rightDarkPct2[pos];
+			ret[k++] = centerDarkDist1[pos];
+			ret[k++] = centerDarkDist2[pos];
+			ret[k++] = centerDarkPct1[pos];
+			ret[k++] = centerDarkPct2[pos];
+		} else {
+			int color = rawValues[0][sy][sx];
+			ret[k++] = modeCenter - color;
+			ret[k++] = modeLeft - color;
+			ret[k++] = modeRight - color;
+			ret[k++] = percentil[color];
 		}
-		for (ch = 0; ch < 5; ch++) {
-			ret[k++] = rawValues[ch][sy][sx];
+	}
+
+	public void useFeatures(boolean[] usedFeatures) {
+		if (usedFeatures == null) {
+			usedGroups = null;
+			return;
 		}
-		for (int i : new int[] { 2, 4, 7, 11 }) {
-			int rx = sx - i;
-			int ry = sy - i;
-			int rs = i * 2 + 1;
-			System.arraycopy(rectHist(rx, ry, rs, rs), 0, ret, k, numHistBins);
-			k += numHistBins;
+		usedGroups = new boolean[numGroups];
+		for (int f = 0; f < numFeatures; f++) {
+			if (usedFeatures[f]) usedGroups[featureGroup[f]] = true;
 		}
+	}
 
-		int pos = sy * width + sx;
+	public void profile(boolean on) {
+		groupNanos = on ? new long[numGroups] : null;
+		profiled = 0;
+	}
 
-		float dx = ret[k++] = Util.pixelToX(sx, slice) - Util.pixelToY(image.getXCenter(sy), slice);
-		float dy = ret[k++] = Util.pixelToY(sy, slice) - Util.pixelToY(image.yCenter, slice);
-		ret[k++] = dx * dx + dy * dy;
-		ret[k++] = Math.abs(dx);
-		ret[k++] = dist[pos];
-		ret[k++] = sliceZ;
-		ret[k++] = darkPct1;
-		ret[k++] = darkPct2;
-		ret[k++] = usedContrast;
-		ret[k++] = slicePct;
-		ret[k++] = topDarkDist1[pos];
-		ret[k++] = topDarkDist2[pos];
-		ret[k++] = topDarkPct1[pos];
-		ret[k++] = topDarkPct2[pos];
-		ret[k++] = bottomDarkDist1[pos];
-		ret[k++] = bottomDarkDist2[pos];
-		ret[k++] = bottomDarkPct1[pos];
-		ret[k++] = bottomDarkPct2[pos];
-		ret[k++] = leftDarkDist1[pos];
-		ret[k++] = leftDarkDist2[pos];
-		ret[k++] = leftDarkPct1[pos];
-		ret[k++] = leftDarkPct2[pos];
-		ret[k++] = rightDarkDist1[pos];
-		ret[k++] = rightDarkDist2[pos];
-		ret[k++] = rightDarkPct1[pos];
-		ret[k++] = rightDarkPct2[pos];
-		ret[k++] = centerDarkDist1[pos];
-		ret[k++] = centerDarkDist2[pos];
-		ret[k++] = centerDarkPct1[pos];
-		ret[k++] = centerDarkPct2[pos];
+	public long[] getGroupNanos() {
+		return groupNanos;
+	}
 
-		int color = rawValues[0][sy][sx];
-		ret[k++] = modeCenter - color;
-		ret[k++] = modeLeft - color;
-		ret[k++] = modeRight - color;
-		ret[k++] = percentil[color];
+	public int getProfiled() {
+		return profiled;
+	}
 
-		return ret;
+	public static String groupName(int g) {
+		int kind = groupKind[g];
+		if (kind == rectGroup) return "rect" + groupChannel[g] + "_" + groupScale[g];
+		if (kind == rawGroup) return "raw";
+		if (kind == histGroup) return "hist_" + groupScale[g];
+		if (kind == positionGroup) return "position";
+		if (kind == darkGroup) return "dark";
+		return "mode";
 	}
 
 	private float[] rectStatFeatures(long[][] a0, long[][] a1, long[][] a2, int rx, int ry, int rw, int rh) {
@@ -43,6 +43,8 @@ public class TumorTracerTester {
     private static final int cutLevel1 = 65;
     private static final int cutLevel2 = 20;
     private static final int cutLevel3 = 10;
+    private static final int exitLevel = 0;
+    private static final boolean compileTrees = false;
 
     public static void main(String[] args) {
         File testingFolder = new File("../provisional");
@@ -69,6 +71,7 @@ public class TumorTracerTester {
         clinicalInfo = Util.readClinical(clinicalFolder);
         lungPredictor = RandomForestPredictor.loadPredictor(rfLung);
         tumorPredictor = RandomForestPredictor.loadPredictor(rfTumor);
+        if (compileTrees) tumorPredictor.compile();
         readInfo(infoTumor);
         processPatients(patients, testingFolder);
         if (write) writeAnswer(answerFile, processedPatients);
@@ -493,7 +496,7 @@ public class TumorTracerTester {
                 }
                 in.close();
             } else {
-                values = Util.evalImage(imagePrev, image, imageNext, slice, tumorPredictor, usedContrast, slicePct);
+                values = Util.evalImage(imagePrev, image, imageNext, slice, tumorPredictor, usedContrast, slicePct, exitLevel / 255.0, Double.POSITIVE_INFINITY);
                 if (useCache) {
                     BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(f), w * h);
                     for (int j = 0; j < h; j++) {
@@ -2,27 +2,59 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class TumorTracerTrainer {
-	private static final int numThreads = 32;
+	private static final int numThreads = Runtime.getRuntime().availableProcessors();
+	private static final long heapBudget = 0;
 	private static final int numTrees = 128;
 	private static final int minRowsPerNode = 16;
 	private static final int maxNodes = 180_000;
 	private static final int maxSamples = 43_000_000; 
 	private static final int subSampleOut = 36;
 	private static final int subSampleIn = 1;
+	private static final boolean useBinnedFeatures = false;
+	private static final int calibrationSamples = 2_000_000;
+	private static final int calibrationSliceStride = 8;
+	private static final boolean parallelSplitSearch = true;
+	private static final boolean trackOutOfBag = false;
+	private static final double oobTolerance = 0;
+	private static final int oobWindow = 16;
+	private static final double keepGain = 0.99;
+	private static final boolean vectorSplitCounter = true;
+	private static final boolean bestFirst = false;
+	private static final int splitSampleRows = 0;
+	private static final int levelBatch = 0;
+	private static final boolean saveSampleStore = false;
+	private static final boolean compressSamples = false;
+	private static final int maxCompressWeight = 32;
+	private static final int compressMantissaBits = 7;
+	private static final int boostDepth = 6;
+	private static final double boostShrinkage = 0.1;
+	private static final double compactEpsilon = 0.005;
+	private static final double pruneTolerance = 0;
+	private static final double selectTolerance = 0.002;
+	private static final int compactStride = 16;
 	private Map<String, Integer> clinicalInfo;
 	private int totSamples = 0;
-	private float[][] features = new float[TumorFeatureExtractor.numFeatures][maxSamples];
-	private boolean[] classif = new boolean[maxSamples];
+	private byte[] rowWeight;
+	private float[][] features = useBinnedFeatures ? null : new float[TumorFeatureExtractor.numFeatures][maxSamples];
+	private BinnedFeatures binned = useBinnedFeatures ? new BinnedFeatures(TumorFeatureExtractor.numFeatures, maxSamples, calibrationSamples) : null;
+	private boolean[] classif = useBinnedFeatures ? binned.classif : new boolean[maxSamples];
 	private RandomForestPredictor lungPredictor;
 	private List<String> info = new ArrayList<String>();
+	private final Map<String, int[]> lungRanges = new HashMap<String, int[]>();
+	private final long[] groupNanos = new long[TumorFeatureExtractor.numGroups];
+	private long profiledPixels;
 
 	public static void main(String[] args) {
 		File trainingFolder = new File("../example");
@@ -30,19 +62,338 @@ public class TumorTracerTrainer {
 		File rfLung = new File("model/rfLung.dat");
 		File infoTumor = new File("model/infoTumor.dat");
 		File clinicalFolder = new File("../clinical");
-		new TumorTracerTrainer().train(trainingFolder, rfLung, rfTumor, infoTumor, clinicalFolder);
+		File samplesTumor = new File("model/samplesTumor.dat");
+		File costTumor = new File("model/costTumor.txt");
+		if (args.length == 0) new TumorTracerTrainer().train(trainingFolder, rfLung, rfTumor, infoTumor, clinicalFolder, samplesTumor, costTumor);
+		else if (args[0].equals("extend")) extend(samplesTumor, rfTumor, Integer.parseInt(args[1]));
+		else if (args[0].equals("shard")) shard(samplesTumor, new File("model/rfTumor." + args[1] + "-" + args[2] + ".dat"), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		else if (args[0].equals("merge")) {
+			File[] parts = new File[args.length - 1];
+			for (int i = 0; i < parts.length; i++) {
+				parts[i] = new File(args[i + 1]);
+			}
+			merge(rfTumor, parts);
+		} else if (args[0].equals("boost")) boost(samplesTumor, new File("model/gbTumor.dat"), Integer.parseInt(args[1]));
+		else if (args[0].equals("distill")) distill(samplesTumor, rfTumor, new File("model/rfTumorStudent.dat"), Integer.parseInt(args[1]));
+		else if (args[0].equals("compact")) compact(samplesTumor, rfTumor, new File("model/rfTumorCompact.dat"));
+		else if (args[0].equals("pack")) {
+			File[] files = new File[args.length - 1];
+			for (int i = 0; i < files.length; i++) {
+				files[i] = new File(args[i + 1]);
+			}
+			pack(files.length == 0 ? new File[] {rfTumor, rfLung} : files);
+		} else if (args[0].equals("checkbatch")) checkBatch(samplesTumor, Integer.parseInt(args[1]));
+		else if (args[0].equals("reduce")) reduce(samplesTumor, rfTumor, costTumor, new File("model/rfTumorReduced.dat"), Integer.parseInt(args[1]));
 	}
 
-	public void train(File trainingFolder, File rfLung, File rfTumor, File infoTumor, File clinicalFolder) {
+	public void train(File trainingFolder, File rfLung, File rfTumor, File infoTumor, File clinicalFolder, File samplesTumor, File costTumor) {
 		List<String> patients = Util.readContent(trainingFolder);
 		//patients = Util.split(patients, 0.75, true);
 		clinicalInfo = Util.readClinical(clinicalFolder);
 		lungPredictor = RandomForestPredictor.loadPredictor(rfLung);
-		processPatients(patients, trainingFolder);
+		if (binned != null) processPatients(patients, trainingFolder, calibrationSliceStride);
+		processPatients(patients, trainingFolder, 0);
 		writeInfo(infoTumor);
+		writeCost(costTumor);
+		if (compressSamples) compressSamples();
+		if (saveSampleStore) saveSamples(samplesTumor);
 		buildRandomForests(rfTumor);
 	}
 
+	public static void extend(File samplesFile, File rfFile, int moreTrees) {
+		System.err.println("Extending Random Forests");
+		RandomForestPredictor rf = RandomForestPredictor.loadPredictor(rfFile);
+		if (rf == null) rf = new RandomForestPredictor(moreTrees, moreTrees * maxNodes);
+		grow(samplesFile, rf, rf.nextTreeId(), rf.nextTreeId() + moreTrees, rfFile, null);
+	}
+
+	public static void shard(File samplesFile, File rfFile, int firstTree, int lastTree) {
+		System.err.println("Building Random Forest Shard " + firstTree + "-" + lastTree);
+		grow(samplesFile, new RandomForestPredictor(lastTree - firstTree, (lastTree - firstTree) * maxNodes), firstTree, lastTree, rfFile, null);
+	}
+
+	public static void reduce(File samplesFile, File rfFile, File costFile, File reducedFile, int numTrees) {
+		try {
+			System.err.println("Selecting Features");
+			FeatureImportance importance = FeatureImportance.load(importanceFile(rfFile), TumorFeatureExtractor.numFeatures);
+			double[] cost = readCost(costFile);
+			boolean[] mask = importance.select(TumorFeatureExtractor.featureGroup, cost, keepGain);
+			boolean[] keep = new boolean[cost.length];
+			double totCost = 0;
+			double keptCost = 0;
+			for (int f = 0; f < mask.length; f++) {
+				if (mask[f]) keep[TumorFeatureExtractor.featureGroup[f]] = true;
+			}
+			for (int g = 0; g < cost.length; g++) {
+				totCost += cost[g];
+				if (keep[g]) keptCost += cost[g];
+				else System.err.println("\t\tDropped " + TumorFeatureExtractor.groupName(g) + "\t" + cost[g] + " ns");
+			}
+			System.err.println("\t          Cost: " + keptCost + " / " + totCost + " ns");
+			System.err.println();
+			System.err.println("Building Reduced Random Forests");
+			grow(samplesFile, new RandomForestPredictor(numTrees, numTrees * maxNodes), 0, numTrees, reducedFile, mask);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void boost(File samplesFile, File rfFile, int numTrees) {
+		try {
+			System.err.println("Building Boosted Trees");
+			long t = System.currentTimeMillis();
+			if (!rfFile.getAbsoluteFile().getParentFile().exists()) rfFile.getAbsoluteFile().getParentFile().mkdirs();
+			TreeOptions options = new TreeOptions();
+			options.importance = new FeatureImportance(TumorFeatureExtractor.numFeatures);
+			RandomForestPredictor rf;
+			if (useBinnedFeatures) {
+				BinnedFeatures binned = BinnedFeatures.load(samplesFile);
+				options.rowWeight = binned.weight;
+				rf = GradientBoostingBuilder.train(binned, numTrees, boostDepth, boostShrinkage, rfFile, numThreads, minRowsPerNode, options);
+			} else {
+				SampleStore samples = SampleStore.load(samplesFile);
+				options.rowWeight = samples.weight;
+				rf = GradientBoostingBuilder.train(samples.features, samples.classif, samples.totRows, numTrees, boostDepth, boostShrinkage, rfFile, numThreads, minRowsPerNode, options);
+			}
+			options.importance.save(importanceFile(rfFile));
+			System.err.println("\t         Trees: " + rf.size());
+			System.err.println("\t   GB Building: " + rfFile.length() + " bytes");
+			System.err.println("\t  Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
+			System.err.println();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void distill(File samplesFile, File rfFile, File studentFile, int numTrees) {
+		try {
+			System.err.println("Distilling Random Forests");
+			long t = System.currentTimeMillis();
+			if (useBinnedFeatures) {
+				System.err.println("\t\tDistillation needs raw samples");
+				return;
+			}
+			RandomForestPredictor teacher = RandomForestPredictor.loadPredictor(rfFile);
+			SampleStore samples = SampleStore.load(samplesFile);
+			TreeOptions options = new TreeOptions();
+			options.rowWeight = samples.weight;
+			RandomForestPredictor student = Distillation.distill(teacher, samples.features, samples.totRows, numTrees, boostDepth, boostShrinkage, studentFile, numThreads, minRowsPerNode, options);
+			System.err.println("\t         Trees: " + student.size());
+			System.err.println("\t   RF Building: " + studentFile.length() + " bytes");
+			System.err.println("\t  Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
+			System.err.println();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void compact(File samplesFile, File rfFile, File compactFile) {
+		try {
+			System.err.println("Compacting Random Forests");
+			long t = System.currentTimeMillis();
+			if (useBinnedFeatures) {
+				System.err.println("\t\tCompaction needs raw samples");
+				return;
+			}
+			RandomForestPredictor rf = RandomForestPredictor.loadPredictor(rfFile);
+			SampleStore samples = SampleStore.load(samplesFile);
+			TreeOptions options = treeOptions(samples.classif, samples.weight, samples.totRows);
+			RandomForestPredictor compact = ForestCompactor.compact(rf, samples.features, samples.classif, samples.totRows, options, compactStride, compactEpsilon, pruneTolerance, selectTolerance,
+					numThreads);
+			compact.save(compactFile);
+			System.err.println("\t         Trees: " + rf.size() + " -> " + compact.size());
+			System.err.println("\t         Nodes: " + rf.nodes() + " -> " + compact.nodes());
+			System.err.println("\t   RF Building: " + compactFile.length() + " bytes");
+			System.err.println("\t  Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
+			System.err.println();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void checkBatch(File samplesFile, int numTrees) {
+		try {
+			System.err.println("Checking Level-wise Tree Batches");
+			long t = System.currentTimeMillis();
+			BinnedFeatures binned;
+			if (useBinnedFeatures) binned = BinnedFeatures.load(samplesFile);
+			else {
+				SampleStore samples = SampleStore.load(samplesFile);
+				binned = BinnedFeatures.build(samples.features, samples.classif, samples.totRows);
+				binned.weight = samples.weight;
+			}
+			int[] budgets = {5, 31, 100, 257, 1023, 4000, maxNodes};
+			int bad = 0;
+			for (int budget : budgets) {
+				bad += TreeBatch.verify(binned, numTrees, minRowsPerNode, budget, numThreads);
+			}
+			System.err.println("\t Differing Trees: " + bad + " / " + numTrees * budgets.length);
+			System.err.println("\t  Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
+			System.err.println();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void pack(File... files) {
+		try {
+			System.err.println("Packing Models");
+			long t = System.currentTimeMillis();
+			for (File file : files) {
+				RandomForestPredictor rf = RandomForestPredictor.loadPredictor(file);
+				if (rf == null) continue;
+				long before = file.length();
+				rf.savePacked(file);
+				System.err.println("\t\t" + file.getPath() + "\t" + before + " -> " + file.length() + " bytes");
+			}
+			System.err.println("\t  Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
+			System.err.println();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void merge(File rfFile, File... parts) {
+		try {
+			System.err.println("Merging Random Forests");
+			long t = System.currentTimeMillis();
+			RandomForestPredictor rf = RandomForestPredictor.merge(parts);
+			rf.save(rfFile);
+			FeatureImportance importance = new FeatureImportance(TumorFeatureExtractor.numFeatures);
+			int found = 0;
+			for (File part : parts) {
+				File f = importanceFile(part);
+				if (!f.exists()) continue;
+				importance.add(FeatureImportance.load(f, TumorFeatureExtractor.numFeatures));
+				found++;
+			}
+			if (found > 0) importance.save(importanceFile(rfFile));
+			if (found < parts.length) System.err.println("\t\tNo importance file for " + (parts.length - found) + " parts");
+			System.err.println("\t         Parts: " + parts.length);
+			System.err.println("\t         Trees: " + rf.size());
+			System.err.println("\t   RF Building: " + rfFile.length() + " bytes");
+			System.err.println("\t  Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
+			System.err.println();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void grow(File samplesFile, RandomForestPredictor rf, int firstTree, int lastTree, File rfFile, boolean[] featureMask) {
+		try {
+			long t = System.currentTimeMillis();
+			int first = rf.size();
+			if (!rfFile.getAbsoluteFile().getParentFile().exists()) rfFile.getAbsoluteFile().getParentFile().mkdirs();
+			TreeOptions options;
+			if (useBinnedFeatures) {
+				BinnedFeatures binned = BinnedFeatures.load(samplesFile);
+				options = treeOptions(binned.classif, binned.weight, binned.size());
+				options.featureMask = featureMask;
+				RandomForestBuilder.train(rf, binned, firstTree, lastTree, maxNodes, rfFile, numThreads, minRowsPerNode, options);
+			} else {
+				SampleStore samples = SampleStore.load(samplesFile);
+				options = treeOptions(samples.classif, samples.weight, samples.totRows);
+				options.featureMask = featureMask;
+				RandomForestBuilder.train(rf, samples.features, samples.classif, samples.totRows, firstTree, lastTree, maxNodes, rfFile, numThreads, minRowsPerNode, options);
+			}
+			File importance = importanceFile(rfFile);
+			if (first > 0 && importance.exists()) options.importance.add(FeatureImportance.load(importance, TumorFeatureExtractor.numFeatures));
+			options.importance.save(importance);
+			System.err.println("\t         Trees: " + first + " -> " + rf.size());
+			System.err.println("\t   RF Building: " + rfFile.length() + " bytes");
+			System.err.println("\t  Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
+			System.err.println();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void saveSamples(File file) {
+		if (file == null) return;
+		try {
+			System.err.println("Saving Samples");
+			if (!file.getParentFile().exists()) file.getParentFile().mkdirs();
+			if (binned != null) binned.save(file);
+			else SampleStore.save(file, features, classif, rowWeight, totSamples);
+			System.err.println();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void compressSamples() {
+		System.err.println("Compressing Samples");
+		long t = System.currentTimeMillis();
+		int before = totSamples;
+		if (binned != null) {
+			totSamples = binned.compress(maxCompressWeight);
+			rowWeight = binned.weight;
+		} else {
+			int[] target = new int[totSamples];
+			byte[] w = new byte[totSamples];
+			int numUnique = RowCompressor.group(RowCompressor.hash(features, classif, totSamples, compressMantissaBits), totSamples, maxCompressWeight, target, w);
+			for (float[] v : features) {
+				RowCompressor.compact(v, target, totSamples);
+			}
+			RowCompressor.compact(classif, target, totSamples);
+			rowWeight = Arrays.copyOf(w, numUnique);
+			totSamples = numUnique;
+		}
+		System.err.println("\t       Samples: " + before + " -> " + totSamples);
+		System.err.println("\t  Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
+		System.err.println();
+	}
+
+	private static TreeOptions treeOptions(boolean[] classif, byte[] rowWeight, int totSamples) {
+		TreeOptions options = new TreeOptions();
+		options.rowWeight = rowWeight;
+		options.parallelSplitSearch = parallelSplitSearch;
+		options.bestFirst = bestFirst;
+		options.splitSampleRows = splitSampleRows;
+		options.levelBatch = levelBatch;
+		options.heapBudget = heapBudget;
+		if (vectorSplitCounter) {
+			options.splitCounter = SplitCounter.VECTOR;
+			System.err.println("\t  Split Counter: " + (options.splitCounter == null ? "scalar" : "vector"));
+		}
+		if (trackOutOfBag || oobTolerance > 0) options.outOfBag = new OutOfBag(classif, rowWeight, totSamples, oobTolerance, oobWindow);
+		options.importance = new FeatureImportance(TumorFeatureExtractor.numFeatures);
+		return options;
+	}
+
+	private static File importanceFile(File rfFile) {
+		return new File(rfFile.getAbsoluteFile().getParentFile(), rfFile.getName().replace(".dat", "") + ".importance.txt");
+	}
+
+	private void writeCost(File file) {
+		try {
+			System.err.println("Writing Feature Cost");
+			BufferedWriter out = new BufferedWriter(new FileWriter(file));
+			for (int g = 0; g < groupNanos.length; g++) {
+				out.write(g + "," + TumorFeatureExtractor.groupName(g) + "," + groupNanos[g] / (double) Math.max(1, profiledPixels));
+				out.newLine();
+			}
+			out.close();
+			System.err.println("\t          File: " + file.getPath());
+			System.err.println("\tProfiled Pixels: " + profiledPixels);
+			System.err.println();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static double[] readCost(File file) throws Exception {
+		double[] ret = new double[TumorFeatureExtractor.numGroups];
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		String line = null;
+		while ((line = in.readLine()) != null) {
+			String[] parts = line.split(",");
+			ret[Integer.parseInt(parts[0])] = Double.parseDouble(parts[2]);
+		}
+		in.close();
+		return ret;
+	}
+
 	private void writeInfo(File file) {
 		try {
 			System.err.println("Writing Info");
@@ -62,9 +413,9 @@ public class TumorTracerTrainer {
 		}
 	}
 
-	private void processPatients(final List<String> patients, final File folder) {
+	private void processPatients(final List<String> patients, final File folder, final int calibrationStride) {
 		try {
-			System.err.println("Processing Patients");
+			System.err.println(calibrationStride > 0 ? "Sampling Calibration Rows" : "Processing Patients");
 			long t = System.currentTimeMillis();
 			Thread[] threads = new Thread[numThreads];
 			for (int i = 0; i < numThreads; i++) {
@@ -81,16 +432,30 @@ public class TumorTracerTrainer {
 
 							int usedContrast = clinicalInfo.get(patient);
 							File[] auxFiles = Util.getAuxFiles(folder, patient);
-							int[] lungRange = Util.findLungRange(auxFiles, folder, patient, lungPredictor, usedContrast);
-							Util.updateImagesCenter(auxFiles, folder, patient, lungRange);
+							int[] lungRange;
+							synchronized (lungRanges) {
+								lungRange = lungRanges.get(patient);
+							}
+							if (lungRange == null) {
+								lungRange = Util.findLungRange(auxFiles, folder, patient, lungPredictor, usedContrast);
+								Util.updateImagesCenter(auxFiles, folder, patient, lungRange);
+								synchronized (lungRanges) {
+									lungRanges.put(patient, lungRange);
+								}
+							}
 							File[] contourFiles = Util.getContourFiles(folder, patient);
 							int idx = Util.findTumorStructuresIndex(new File(folder, patient + "/structures.dat"));
 							String suffix = "." + idx + ".dat";
 
 							List<Region> allRegions = new ArrayList<Region>();
-							SliceImage image0 = new SliceImage(new File(folder, patient + "/pngs/" + lungRange[0] + ".png"), true);
-							SliceImage image1 = new SliceImage(new File(folder, patient + "/pngs/" + (lungRange[0] + 1) + ".png"), false);
+							SliceImage image0 = calibrationStride > 0 ? null : new SliceImage(new File(folder, patient + "/pngs/" + lungRange[0] + ".png"), true);
+							SliceImage image1 = calibrationStride > 0 ? null : new SliceImage(new File(folder, patient + "/pngs/" + (lungRange[0] + 1) + ".png"), false);
 							for (int sliceId = lungRange[0] + 1; sliceId < lungRange[1]; sliceId++) {
+								if (calibrationStride > 0) {
+									if ((sliceId - lungRange[0] - 1) % calibrationStride != 0) continue;
+									image0 = new SliceImage(new File(folder, patient + "/pngs/" + (sliceId - 1) + ".png"), true);
+									image1 = new SliceImage(new File(folder, patient + "/pngs/" + sliceId + ".png"), false);
+								}
 								File auxFile = new File(folder, patient + "/auxiliary/" + sliceId + ".dat");
 								List<Region> regions = new ArrayList<Region>();
 								Slice slice = Util.readSlice(auxFile);
@@ -100,11 +465,21 @@ public class TumorTracerTrainer {
 										break;
 									}
 								}
-								processRegionsInfo(regions, slice);
+								if (calibrationStride == 0) processRegionsInfo(regions, slice);
 								allRegions.addAll(regions);
 								SliceImage image2 = new SliceImage(new File(folder, patient + "/pngs/" + (sliceId + 1) + ".png"), false);
 								TumorFeatureExtractor extractor = new TumorFeatureExtractor(image0, image1, image2, slice, usedContrast, (sliceId - lungRange[0] + 1) / (double) (lungRange[1] - lungRange[0] + 1));
-								processImage(patient, image1, regions, slice, extractor);
+								extractor.profile(calibrationStride == 0);
+								processImage(patient, image1, regions, slice, extractor, calibrationStride > 0);
+								if (calibrationStride == 0) {
+									synchronized (groupNanos) {
+										long[] nanos = extractor.getGroupNanos();
+										for (int g = 0; g < groupNanos.length; g++) {
+											groupNanos[g] += nanos[g];
+										}
+										profiledPixels += extractor.getProfiled();
+									}
+								}
 								image0 = image1;
 								image1 = image2;
 							}
@@ -118,7 +493,7 @@ public class TumorTracerTrainer {
 			for (int i = 0; i < numThreads; i++) {
 				threads[i].join();
 			}
-			System.err.println("\t         Samples: " + totSamples);
+			if (calibrationStride == 0) System.err.println("\t         Samples: " + totSamples);
 			System.err.println("\t    Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
 			System.err.println();
 		} catch (Exception e) {
@@ -137,7 +512,7 @@ public class TumorTracerTrainer {
 		}
 	}
 
-	private void processImage(String patient, SliceImage image, List<Region> regions, Slice slice, TumorFeatureExtractor extractor) {
+	private void processImage(String patient, SliceImage image, List<Region> regions, Slice slice, TumorFeatureExtractor extractor, boolean calibrate) {
 		try {
 			int w = image.width;
 			int h = image.height;
@@ -180,6 +555,15 @@ public class TumorTracerTrainer {
 			}
 			synchronized (classif) {
 				for (int i = 0; i < classifImage.size(); i++) {
+					if (calibrate) {
+						binned.sample(featuresImage.get(i));
+						continue;
+					}
+					if (binned != null) {
+						binned.add(featuresImage.get(i), classifImage.get(i).booleanValue());
+						totSamples++;
+						continue;
+					}
 					classif[totSamples] = classifImage.get(i).booleanValue();
 					float[] v = featuresImage.get(i);
 					for (int j = 0; j < TumorFeatureExtractor.numFeatures; j++) {
@@ -198,7 +582,7 @@ public class TumorTracerTrainer {
 			System.err.println("Building Random Forests");
 			int[] count = new int[2];
 			for (int i = 0; i < totSamples; i++) {
-				count[classif[i] ? 1 : 0]++;
+				count[classif[i] ? 1 : 0] += rowWeight == null ? 1 : rowWeight[i];
 			}
 
 			System.err.println("==== SAMPLES =====");
@@ -209,7 +593,14 @@ public class TumorTracerTrainer {
 
 			long t = System.currentTimeMillis();
 			if (!rfFile.getParentFile().exists()) rfFile.getParentFile().mkdirs();
-			RandomForestBuilder.train(features, classif, totSamples, numTrees, maxNodes, rfFile, numThreads, minRowsPerNode);
+			TreeOptions options = treeOptions(classif, rowWeight, totSamples);
+			if (binned != null) {
+				binned.finish();
+				RandomForestBuilder.train(binned, numTrees, maxNodes, rfFile, numThreads, minRowsPerNode, options);
+			} else {
+				RandomForestBuilder.train(features, classif, totSamples, numTrees, maxNodes, rfFile, numThreads, minRowsPerNode, options);
+			}
+			options.importance.save(importanceFile(rfFile));
 
 			System.err.println("\t   RF Building: " + rfFile.length() + " bytes");
 			System.err.println("\t  Elapsed Time: " + (System.currentTimeMillis() - t) + " ms");
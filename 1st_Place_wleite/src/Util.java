@@ -18,20 +18,37 @@ public class Util {
 	private static String[] tumorStructures = "radiomics_gtv|radiomics_gtv|Radiomics_gtv|radiomics_gtv2|radiomics_gtv_nw|radiomics_gtvr".split("\\|");
 	private static String[] lungsStructures = "lungs|Both Lungs|Combo Lung|COMBO LUNGS|lung|Lung|LUNG RT and LT|lungs|Lungs|LUNGS|Lungs_Total|Lungs_TOTAL|Lung_Total|LUNG TOTAL|total lung|Total lung|Total Lung|TOTAL LUNG|TOTAL LUNG.|total lungs|Total Lungs|TOT LUNG|whole lung|RT and LT Lungs|RT and LT LUNGS"
 			.split("\\|");
+	private static final int evalTile = 256;
 
 	public static byte[][] evalImage(SliceImage imagePrev, SliceImage image, SliceImage imageNext, Slice slice, RandomForestPredictor predictor, int usedContrast, double slicePct) {
+		return evalImage(imagePrev, image, imageNext, slice, predictor, usedContrast, slicePct, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+	}
+
+	public static byte[][] evalImage(SliceImage imagePrev, SliceImage image, SliceImage imageNext, Slice slice, RandomForestPredictor predictor, int usedContrast, double slicePct, double bandLow,
+			double bandHigh) {
 		try {
 			int w = image.width;
 			int h = image.height;
 			byte[][] ret = new byte[h][w];
 			TumorFeatureExtractor ext = new TumorFeatureExtractor(imagePrev, image, imageNext, slice, usedContrast, slicePct);
+			ext.useFeatures(predictor.usedFeatures(TumorFeatureExtractor.numFeatures));
+			float[][] tile = new float[evalTile][];
+			int[] pos = new int[evalTile];
+			double[] out = new double[evalTile];
+			boolean[] bounded = bandLow > 0 || bandHigh < 1 ? new boolean[evalTile] : null;
+			int n = 0;
 			for (int y = 0; y < h; y++) {
 				for (int x = 0; x < w; x++) {
 					if (image.gray[y * w + x] == 0) continue;
-					float[] features = ext.getFeatures(x, y);
-					ret[y][x] = (byte) Math.round(255 * predictor.predict(features));
+					tile[n] = ext.getFeatures(x, y);
+					pos[n++] = y * w + x;
+					if (n == evalTile) {
+						predictTile(predictor, tile, pos, n, out, ret, w, bandLow, bandHigh, bounded);
+						n = 0;
+					}
 				}
 			}
+			predictTile(predictor, tile, pos, n, out, ret, w, bandLow, bandHigh, bounded);
 			return ret;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -40,6 +57,14 @@ public class Util {
 		return null;
 	}
 
+	private static void predictTile(RandomForestPredictor predictor, float[][] tile, int[] pos, int n, double[] out, byte[][] ret, int w, double bandLow, double bandHigh, boolean[] bounded) {
+		if (bounded != null) predictor.predictBounded(tile, n, bandLow, bandHigh, out, bounded);
+		else predictor.predict(tile, n, out);
+		for (int i = 0; i < n; i++) {
+			ret[pos[i] / w][pos[i] % w] = (byte) Math.round(255 * out[i]);
+		}
+	}
+
 	public static Slice readSlice(File file) {
 		Slice slice = new Slice();
 		try {
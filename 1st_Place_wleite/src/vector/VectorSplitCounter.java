@@ -0,0 +1,91 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorSplitCounter implements SplitCounter {
+	private static final VectorSpecies<Float> fs = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Integer> is = VectorSpecies.of(int.class, fs.vectorShape());
+	private static final VectorSpecies<Byte> bs = VectorSpecies.of(byte.class, VectorShape.forBitSize(fs.length() * 8));
+
+	public void count(float[] values, int[] rows, byte[] rowStat, int start, int end, float[] splitVals, int[] leftTot, int[] leftClassif) {
+		int r = start;
+		if (splitVals.length == 10) {
+			float s0 = splitVals[0], s1 = splitVals[1], s2 = splitVals[2], s3 = splitVals[3], s4 = splitVals[4];
+			float s5 = splitVals[5], s6 = splitVals[6], s7 = splitVals[7], s8 = splitVals[8], s9 = splitVals[9];
+			IntVector t0 = IntVector.zero(is), t1 = t0, t2 = t0, t3 = t0, t4 = t0, t5 = t0, t6 = t0, t7 = t0, t8 = t0, t9 = t0;
+			IntVector c0 = t0, c1 = t0, c2 = t0, c3 = t0, c4 = t0, c5 = t0, c6 = t0, c7 = t0, c8 = t0, c9 = t0;
+			int len = fs.length();
+			for (; r + len <= end + 1; r += len) {
+				FloatVector v = FloatVector.fromArray(fs, values, 0, rows, r);
+				IntVector stat = ((IntVector) ByteVector.fromArray(bs, rowStat, r).castShape(is, 0)).and(0xFF);
+				IntVector w = stat.lanewise(VectorOperators.LSHR, 1);
+				IntVector wc = w.mul(stat.and(1));
+				VectorMask<Integer> m = v.lt(s0).cast(is);
+				t0 = t0.add(w, m);
+				c0 = c0.add(wc, m);
+				m = v.lt(s1).cast(is);
+				t1 = t1.add(w, m);
+				c1 = c1.add(wc, m);
+				m = v.lt(s2).cast(is);
+				t2 = t2.add(w, m);
+				c2 = c2.add(wc, m);
+				m = v.lt(s3).cast(is);
+				t3 = t3.add(w, m);
+				c3 = c3.add(wc, m);
+				m = v.lt(s4).cast(is);
+				t4 = t4.add(w, m);
+				c4 = c4.add(wc, m);
+				m = v.lt(s5).cast(is);
+				t5 = t5.add(w, m);
+				c5 = c5.add(wc, m);
+				m = v.lt(s6).cast(is);
+				t6 = t6.add(w, m);
+				c6 = c6.add(wc, m);
+				m = v.lt(s7).cast(is);
+				t7 = t7.add(w, m);
+				c7 = c7.add(wc, m);
+				m = v.lt(s8).cast(is);
+				t8 = t8.add(w, m);
+				c8 = c8.add(wc, m);
+				m = v.lt(s9).cast(is);
+				t9 = t9.add(w, m);
+				c9 = c9.add(wc, m);
+			}
+			leftTot[0] = t0.reduceLanes(VectorOperators.ADD);
+			leftTot[1] = t1.reduceLanes(VectorOperators.ADD);
+			leftTot[2] = t2.reduceLanes(VectorOperators.ADD);
+			leftTot[3] = t3.reduceLanes(VectorOperators.ADD);
+			leftTot[4] = t4.reduceLanes(VectorOperators.ADD);
+			leftTot[5] = t5.reduceLanes(VectorOperators.ADD);
+			leftTot[6] = t6.reduceLanes(VectorOperators.ADD);
+			leftTot[7] = t7.reduceLanes(VectorOperators.ADD);
+			leftTot[8] = t8.reduceLanes(VectorOperators.ADD);
+			leftTot[9] = t9.reduceLanes(VectorOperators.ADD);
+			leftClassif[0] = c0.reduceLanes(VectorOperators.ADD);
+			leftClassif[1] = c1.reduceLanes(VectorOperators.ADD);
+			leftClassif[2] = c2.reduceLanes(VectorOperators.ADD);
+			leftClassif[3] = c3.reduceLanes(VectorOperators.ADD);
+			leftClassif[4] = c4.reduceLanes(VectorOperators.ADD);
+			leftClassif[5] = c5.reduceLanes(VectorOperators.ADD);
+			leftClassif[6] = c6.reduceLanes(VectorOperators.ADD);
+			leftClassif[7] = c7.reduceLanes(VectorOperators.ADD);
+			leftClassif[8] = c8.reduceLanes(VectorOperators.ADD);
+			leftClassif[9] = c9.reduceLanes(VectorOperators.ADD);
+		}
+		for (; r <= end; r++) {
+			int s = rowStat[r] & 0xFF;
+			int w = s >>> 1;
+			float val = values[rows[r]];
+			for (int k = 0; k < splitVals.length; k++) {
+				if (val < splitVals[k]) {
+					leftTot[k] += w;
+					if ((s & 1) != 0) leftClassif[k] += w;
+				}
+			}
+		}
+	}
+}